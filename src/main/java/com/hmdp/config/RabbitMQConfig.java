@@ -1,23 +1,140 @@
 package com.hmdp.config;
 
+import com.google.common.hash.Hashing;
 import org.springframework.amqp.core.*;
+import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFactory;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
 import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.amqp.SimpleRabbitListenerContainerFactoryConfigurer;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 @Configuration
 public class RabbitMQConfig {
 
+    // 重试延迟队列名前缀, 后缀是该级的延迟毫秒数
+    public static final String RETRY_QUEUE_PREFIX = "retry.seckill.delay.";
+    // 重试交换机: headers 类型, 按 RETRY_DELAY_HEADER 路由到对应级别的延迟队列, 消息保留原来的路由键
+    public static final String RETRY_EXCHANGE = "hmdianping.retry";
+    public static final String RETRY_DELAY_HEADER = "retry-delay";
+    // 死信处理失败时的退避队列, RETRY_DELAY_HEADER 取这个值, 到期后回到死信队列
+    public static final String RETRY_DLQ = "dlq";
+    public static final String RETRY_DLQ_QUEUE = RETRY_QUEUE_PREFIX + RETRY_DLQ;
+    // 订单分片队列名前缀和路由键前缀, 后缀是分片号
+    public static final String SHARD_QUEUE_PREFIX = "direct.seckill.queue.";
+    public static final String SHARD_ROUTING_PREFIX = "direct.seckill.";
+
+    @Value("${custom.seckill.batchSize}")
+    private Integer batchSize;
+
+    @Value("${custom.seckill.batchTimeout}")
+    private Long batchTimeout;
+
+    @Value("${custom.seckill.retryDelays}")
+    private long[] retryDelays;
+
+    @Value("${custom.seckill.shards}")
+    private Integer shards;
+
+    public static String retryQueueName(long delay) {
+        return RETRY_QUEUE_PREFIX + delay;
+    }
+
+    public static String shardQueueName(int shard) {
+        return SHARD_QUEUE_PREFIX + shard;
+    }
+
+    /**
+     * 订单的路由键: 不分片时是 direct.seckill, 分片时按 voucherId 一致性哈希到 direct.seckill.i,
+     * 同一张券的订单总是进同一个分片, 分片数变化时只有约 1/N 的券换分片
+     */
+    public static String seckillRoutingKey(Long voucherId, int shards) {
+        if (shards <= 1) {
+            return "direct.seckill";
+        }
+        return SHARD_ROUTING_PREFIX + Hashing.consistentHash(voucherId, shards);
+    }
 
     @Bean
     public MessageConverter messageConverter() {
         return new Jackson2JsonMessageConverter();
     }
 
+    /**
+     * 批量消费的容器工厂: 攒够 batchSize 条或等待 batchTimeout 毫秒后整批交给监听器
+     * <p>prefetch 至少要等于 batchSize, 否则一批永远攒不满</p>
+     */
+    @Bean
+    public SimpleRabbitListenerContainerFactory batchContainerFactory(
+            SimpleRabbitListenerContainerFactoryConfigurer configurer, ConnectionFactory connectionFactory) {
+        SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
+        configurer.configure(factory, connectionFactory);
+        factory.setBatchListener(true);
+        factory.setConsumerBatchEnabled(true);
+        factory.setBatchSize(batchSize);
+        factory.setReceiveTimeout(batchTimeout);
+        factory.setPrefetchCount(batchSize);
+        return factory;
+    }
+
+    /**
+     * 每一级退避各一个延迟队列: 没有消费者, 消息 TTL 到期后带着原来的路由键死信回到 hmdianping.direct,
+     * 分片模式下也能回到原来的分片队列
+     * <p>队列名带上延迟毫秒数, 调整退避计划时声明的是新队列, 不会和已有队列的 TTL 参数冲突</p>
+     * <p>另有一个死信的退避队列, 按最后一级的延迟到期后回到死信队列</p>
+     */
+    @Bean
+    public Declarables retryQueues() {
+        HeadersExchange exchange = new HeadersExchange(RETRY_EXCHANGE);
+        List<Declarable> declarables = new ArrayList<>(2 * retryDelays.length + 3);
+        declarables.add(exchange);
+        Map<String, Object> dlqArgs = new HashMap<>();
+        dlqArgs.put("x-message-ttl", retryDelays[retryDelays.length - 1]);
+        dlqArgs.put("x-dead-letter-exchange", "hmdianping.dlx");
+        dlqArgs.put("x-dead-letter-routing-key", "dlx.seckill");
+        Queue dlqRetry = new Queue(RETRY_DLQ_QUEUE, true, false, false, dlqArgs);
+        declarables.add(dlqRetry);
+        declarables.add(BindingBuilder.bind(dlqRetry).to(exchange).where(RETRY_DELAY_HEADER).matches(RETRY_DLQ));
+        for (long delay : retryDelays) {
+            Map<String, Object> args = new HashMap<>();
+            args.put("x-message-ttl", delay);
+            args.put("x-dead-letter-exchange", "hmdianping.direct");
+            Queue queue = new Queue(retryQueueName(delay), true, false, false, args);
+            declarables.add(queue);
+            declarables.add(BindingBuilder.bind(queue).to(exchange)
+                    .where(RETRY_DELAY_HEADER).matches(String.valueOf(delay)));
+        }
+        return new Declarables(declarables);
+    }
+
+    /**
+     * 分片模式下的订单队列 direct.seckill.queue.i, 和 direct.seckill.queue 一样失败进死信队列
+     */
+    @Bean
+    public Declarables shardQueues() {
+        if (shards <= 1) {
+            return new Declarables();
+        }
+        DirectExchange exchange = new DirectExchange("hmdianping.direct");
+        List<Declarable> declarables = new ArrayList<>(2 * shards);
+        for (int i = 0; i < shards; i++) {
+            Map<String, Object> args = new HashMap<>();
+            args.put("x-dead-letter-exchange", "hmdianping.dlx");
+            args.put("x-dead-letter-routing-key", "dlx.seckill");
+            Queue queue = new Queue(shardQueueName(i), true, false, false, args);
+            declarables.add(queue);
+            declarables.add(BindingBuilder.bind(queue).to(exchange).with(SHARD_ROUTING_PREFIX + i));
+        }
+        return new Declarables(declarables);
+    }
+
     // 声明死信队列（核心）
     @Bean
     public Queue dlxSeckillQueue() {
@@ -1,28 +1,35 @@
 package com.hmdp.config;
 
 
+import cn.hutool.core.bean.BeanUtil;
 import com.hmdp.entity.FailedVoucherOrder;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.service.IFailedVoucherOrderService;
 import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.utils.OrderStatus;
+import com.hmdp.utils.SeckillConsumerController;
+import com.hmdp.utils.SeckillShardAssigner;
+import com.hmdp.utils.SeckillStockClient;
+import com.hmdp.utils.SoldOutRegistry;
 import com.rabbitmq.client.Channel;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
 import jakarta.annotation.Resource;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.amqp.core.Message;
 import org.springframework.amqp.rabbit.annotation.*;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.support.converter.MessageConverter;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Lazy;
-import org.springframework.core.io.ClassPathResource;
-import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
-import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.stereotype.Component;
 
 import java.io.IOException;
-import java.util.Arrays;
-
-import static com.hmdp.utils.RedisConstants.SECKILL_ORDER_PREFIX;
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_PREFIX;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
 
 
 @Component
@@ -36,20 +43,47 @@ public class RabbitMQListener {
     private IFailedVoucherOrderService failedVoucherOrderService;
 
     @Resource
-    private ThreadPoolTaskExecutor orderTaskExecutor;
+    private SeckillConsumerController consumerController;
+
+    @Resource
+    private SeckillStockClient seckillStockClient;
+
+    @Resource
+    private MessageConverter messageConverter;
+
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
 
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private RabbitTemplate rabbitTemplate;
 
-    private static final DefaultRedisScript<Long> ROLLBACK_SCRIPT;
+    @Value("${custom.seckill.consumer}")
+    private String consumerMode;
 
-    static {
-        ROLLBACK_SCRIPT = new DefaultRedisScript<>();
-        ROLLBACK_SCRIPT.setLocation(new ClassPathResource("rollback_secKill.lua"));
-        ROLLBACK_SCRIPT.setResultType(Long.class);
+    @Value("${custom.seckill.retryDelays}")
+    private long[] retryDelays;
+
+    private static final long REPORT_INTERVAL = 1000;
+
+    // 重新发布到延迟队列时等待 broker 确认的毫秒数
+    private static final long CONFIRM_TIMEOUT = 5000;
+
+    private final AtomicLong processedOrders = new AtomicLong();
+
+    private final AtomicLong processingNanos = new AtomicLong();
+
+    private final Counter drainedOrders;
+
+    public RabbitMQListener(MeterRegistry meterRegistry) {
+        // 死信处理速率: /actuator/metrics/seckill.dlq.drained 的计数变化
+        this.drainedOrders = Counter.builder("seckill.dlq.drained")
+                .description("已处理的死信订单数").register(meterRegistry);
     }
 
-    @RabbitListener(bindings = @QueueBinding(
+    /**
+     * 逐条消费: 在消费者线程上落库并确认, 消费者数量和 prefetch 由 {@link SeckillConsumerController} 调整
+     */
+    @RabbitListener(id = "seckillListener", bindings = @QueueBinding(
             value = @Queue(
                     name = "direct.seckill.queue",
                     durable = "true",
@@ -60,59 +94,195 @@ public class RabbitMQListener {
             ),
             key = "direct.seckill",
             exchange = @Exchange(name = "hmdianping.direct")
-    ))
+    ), autoStartup = "#{'${custom.seckill.pipeline}' == 'rabbit' && '${custom.seckill.consumer}' != 'batch' && ${custom.seckill.shards} <= 1}")
     public void receiveMessage(Message message, Channel channel, VoucherOrder voucherOrder) {
-        orderTaskExecutor.submit(() -> {
-            log.info("收到订单: {}", voucherOrder);
-            Object header = message.getMessageProperties().getHeader("retry-count");
-            int retry = Integer.parseInt((String) header);
-            try{
-                if(retry > 3){
-                    log.error("订单处理失败，超过最大重试次数: 3  {}", voucherOrder);
-                    log.warn("发送到死信队列...{}",voucherOrder);
-                    message.getMessageProperties().setHeader("retry-count", "0");
-                    channel.basicReject(message.getMessageProperties().getDeliveryTag(), false);
-                    log.warn("发送完成 {}",voucherOrder);
-                    return;
-                }
-                boolean success = voucherOrderService.createOrder(voucherOrder);
-                if(success){
-                    channel.basicAck(message.getMessageProperties().getDeliveryTag(), false);
-                    // 成功,设置订单状态
-                    voucherOrderService.setOrderStatus(voucherOrder.getId(), OrderStatus.SUCCESS);
-                }
-                else
-                    throw new RuntimeException("数据库处理异常!");
-            } catch (Exception e) {
-                log.error("处理订单失败,准备重试: {}", voucherOrder, e);
-                try {
-                    message.getMessageProperties().setHeader("retry-count", String.valueOf(retry + 1));
-                    log.info("第 {} 次重试: {}", retry + 1, voucherOrder);
-                    channel.basicNack(message.getMessageProperties().getDeliveryTag(), false,true);
-                } catch (IOException ex) {
-                    log.error("重新入队失败 {}",voucherOrder);
-                }
-            }
-        });
+        long begin = System.nanoTime();
+        boolean success = handleOrder(message, channel, voucherOrder);
+        long elapsed = System.nanoTime() - begin;
+        consumerController.record(elapsed);
+        if (success) {
+            recordThroughput(1, elapsed);
+        }
     }
-    @RabbitListener(queues = "dlx.seckill.queue")
-    public void handleFailedMessage(Message message, Channel channel, VoucherOrder voucherOrder) {
-        log.error("订单处理失败，进入死信队列: {}", voucherOrder);
-        // 处理死信消息，如记录日志、通知人工干预等
+
+    /**
+     * 分片队列的消费入口, 由 {@link SeckillShardAssigner} 创建的容器调用, 每个分片队列一个消费者
+     */
+    public void receiveShardMessage(Message message, Channel channel) {
+        receiveMessage(message, channel, (VoucherOrder) messageConverter.fromMessage(message));
+    }
+
+    /**
+     * 批量消费: 一批订单一个事务落库, 成功后 basicAck(multiple=true) 一次确认整批
+     * <p>整批失败则退化为逐条处理, 走退避重试/死信逻辑</p>
+     */
+    @RabbitListener(id = "seckillBatchListener", queues = "direct.seckill.queue",
+            containerFactory = "batchContainerFactory",
+            autoStartup = "#{'${custom.seckill.pipeline}' == 'rabbit' && '${custom.seckill.consumer}' == 'batch' && ${custom.seckill.shards} <= 1}")
+    public void receiveBatch(List<Message> messages, Channel channel) {
+        long begin = System.nanoTime();
+        List<VoucherOrder> orders = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            orders.add((VoucherOrder) messageConverter.fromMessage(message));
+        }
+        List<VoucherOrder> created;
+        try {
+            created = voucherOrderService.createOrderBatch(orders);
+        } catch (Exception e) {
+            log.error("批量落库失败, 退化为逐条处理: {} 条", orders.size(), e);
+            for (int i = 0; i < messages.size(); i++) {
+                handleOrder(messages.get(i), channel, orders.get(i));
+            }
+            consumerController.record(System.nanoTime() - begin);
+            return;
+        }
         try {
-            Long userId = voucherOrder.getUserId();
-            Long voucherId = voucherOrder.getVoucherId();
-            // 示例：记录到数据库或发送警报
-            stringRedisTemplate.execute(ROLLBACK_SCRIPT,
-                    Arrays.asList(SECKILL_STOCK_PREFIX, SECKILL_ORDER_PREFIX),
-                    voucherId.toString(), userId.toString()
-            );
-            // 设置订单状态为失败
-            voucherOrderService.setOrderStatus(voucherOrder.getId(), OrderStatus.FAILED);
-            orderTaskExecutor.submit(()->failedVoucherOrderService.save((FailedVoucherOrder) voucherOrder));// 落库
-            channel.basicAck(message.getMessageProperties().getDeliveryTag(), false);
+            channel.basicAck(messages.getLast().getMessageProperties().getDeliveryTag(), true);
         } catch (IOException e) {
-            log.error("订单ack失败: {}", voucherOrder, e);
+            log.error("批量ack失败: {} 条", messages.size(), e);
         }
+        // 已经存在的订单也一并确认掉, 重复投递不需要再重试
+        for (VoucherOrder order : created) {
+            voucherOrderService.setOrderStatus(order.getId(), OrderStatus.SUCCESS);
+        }
+        long elapsed = System.nanoTime() - begin;
+        consumerController.record(elapsed);
+        recordThroughput(orders.size(), elapsed);
+    }
+
+    /**
+     * 逐条处理一个订单: 失败按 retryDelays 退避重试, 退避计划用完后进死信队列
+     *
+     * @return 是否落库成功
+     */
+    private boolean handleOrder(Message message, Channel channel, VoucherOrder voucherOrder) {
+        log.info("收到订单: {}", voucherOrder);
+        try{
+            boolean success = voucherOrderService.createOrder(voucherOrder);
+            if(success){
+                channel.basicAck(message.getMessageProperties().getDeliveryTag(), false);
+                // 成功,设置订单状态
+                voucherOrderService.setOrderStatus(voucherOrder.getId(), OrderStatus.SUCCESS);
+                return true;
+            }
+            else
+                throw new RuntimeException("数据库处理异常!");
+        } catch (Exception e) {
+            log.error("处理订单失败,准备重试: {}", voucherOrder, e);
+            scheduleRetry(message, channel, voucherOrder);
+            return false;
+        }
+    }
+
+    /**
+     * 把失败的订单带上新的重试次数重新发布到对应级别的延迟队列, broker 确认收到后再确认原消息
+     * <p>nack 重新入队不会带上修改过的 header, 而且会立刻重新投递, 所以重试次数只能靠重新发布来传递</p>
+     */
+    private void scheduleRetry(Message message, Channel channel, VoucherOrder voucherOrder) {
+        long deliveryTag = message.getMessageProperties().getDeliveryTag();
+        Object header = message.getMessageProperties().getHeader("retry-count");
+        int retry = header == null ? 0 : Integer.parseInt(header.toString());
+        try {
+            if (retry >= retryDelays.length) {
+                log.error("订单处理失败，超过最大重试次数: {}  {}", retryDelays.length, voucherOrder);
+                log.warn("发送到死信队列...{}", voucherOrder);
+                channel.basicReject(deliveryTag, false);
+                return;
+            }
+            message.getMessageProperties().setHeader("retry-count", String.valueOf(retry + 1));
+            // 保留原来的路由键, 到期后回到原来的(分片)队列; 没有收到确认会抛异常, 走下面的重新入队
+            republish(List.of(message), String.valueOf(retryDelays[retry]));
+            log.info("第 {} 次重试, {} ms 后重新投递: {}", retry + 1, retryDelays[retry], voucherOrder);
+            channel.basicAck(deliveryTag, false);
+        } catch (Exception e) {
+            // 延迟队列发布失败或者没有确认, 只能原样重新入队, 下次投递时再尝试
+            log.error("重试调度失败, 重新入队 {}", voucherOrder, e);
+            try {
+                channel.basicNack(deliveryTag, false, true);
+            } catch (IOException ex) {
+                log.error("重新入队失败 {}", voucherOrder);
+            }
+        }
+    }
+
+    /**
+     * 累计落库的订单数和耗时, 每 REPORT_INTERVAL 单打印一次当前消费模式的吞吐
+     */
+    private void recordThroughput(int orders, long nanos) {
+        long total = processedOrders.addAndGet(orders);
+        long elapsed = processingNanos.addAndGet(nanos);
+        if (total / REPORT_INTERVAL != (total - orders) / REPORT_INTERVAL) {
+            log.info("[{}] 已落库 {} 单, 平均吞吐 {} 单/s", consumerMode, total,
+                    elapsed == 0 ? 0 : total * 1_000_000_000L / elapsed);
+        }
+    }
+
+    /**
+     * 批量处理死信: 每个(券,分段)一次脚本回滚库存和一人一单, 一条多行 INSERT 记录失败订单, basicAck(multiple=true) 确认整批
+     * <p>回滚脚本按订单ID去重, 处理失败的整批经退避队列延迟后再回到死信队列, 重复处理不会多还库存</p>
+     */
+    @RabbitListener(id = "seckillDlqListener", queues = "dlx.seckill.queue",
+            containerFactory = "batchContainerFactory",
+            autoStartup = "#{'${custom.seckill.pipeline}' == 'rabbit'}")
+    public void handleFailedMessages(List<Message> messages, Channel channel) {
+        long lastTag = messages.getLast().getMessageProperties().getDeliveryTag();
+        List<VoucherOrder> orders = new ArrayList<>(messages.size());
+        for (Message message : messages) {
+            orders.add((VoucherOrder) messageConverter.fromMessage(message));
+        }
+        log.error("订单处理失败，进入死信队列: {} 条", orders.size());
+        try {
+            Map<Long, List<VoucherOrder>> ordersByVoucher = orders.stream()
+                    .collect(Collectors.groupingBy(VoucherOrder::getVoucherId));
+            ordersByVoucher.forEach((voucherId, group) -> {
+                // 回滚 Redis 的库存和一人一单
+                seckillStockClient.rollbackBatch(voucherId, group);
+                // 库存回补了, 清除各节点的售罄标记
+                soldOutRegistry.markAvailable(voucherId);
+            });
+            // 记录到数据库
+            failedVoucherOrderService.saveBatchIgnore(orders.stream()
+                    .map(order -> BeanUtil.copyProperties(order, FailedVoucherOrder.class)).toList());
+            for (VoucherOrder order : orders) {
+                // 设置订单状态为失败
+                voucherOrderService.setOrderStatus(order.getId(), OrderStatus.FAILED);
+            }
+            channel.basicAck(lastTag, true);
+            drainedOrders.increment(orders.size());
+        } catch (Exception e) {
+            // 立刻 nack 重新入队会马上再投递回来, 依赖的 Redis/MySQL 没恢复就是空转, 先进退避队列
+            log.error("死信处理失败, 整批延迟后重新处理: {} 条", orders.size(), e);
+            try {
+                republish(messages, RabbitMQConfig.RETRY_DLQ);
+                channel.basicAck(lastTag, true);
+            } catch (Exception ex) {
+                // 退避队列也发不出去, 只能原样重新入队
+                log.error("死信延迟重试失败, 整批重新入队: {} 条", orders.size(), ex);
+                try {
+                    channel.basicNack(lastTag, true, true);
+                } catch (IOException ignored) {
+                    log.error("死信重新入队失败: {} 条", orders.size());
+                }
+            }
+        }
+    }
+
+    /**
+     * 把消息发到重试交换机上 delay 对应的延迟队列, 保留原来的路由键, 在同一个 channel 上等 broker 确认
+     *
+     * @throws org.springframework.amqp.AmqpException 发送失败或者没有在 CONFIRM_TIMEOUT 内收到全部 ack
+     */
+    private void republish(List<Message> messages, String delay) {
+        rabbitTemplate.invoke(operations -> {
+            for (Message message : messages) {
+                message.getMessageProperties().setHeader(RabbitMQConfig.RETRY_DELAY_HEADER, delay);
+                // 延迟队列的 TTL 才是退避时间, 消息自带的 expiration 要去掉
+                message.getMessageProperties().setExpiration(null);
+                operations.send(RabbitMQConfig.RETRY_EXCHANGE,
+                        message.getMessageProperties().getReceivedRoutingKey(), message);
+            }
+            operations.waitForConfirmsOrDie(CONFIRM_TIMEOUT);
+            return null;
+        });
     }
 }
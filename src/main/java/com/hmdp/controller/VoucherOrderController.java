@@ -4,9 +4,12 @@ package com.hmdp.controller;
 import com.google.common.util.concurrent.RateLimiter;
 import com.hmdp.dto.Result;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.OrderResultNotifier;
+import com.hmdp.utils.OrderStatus;
 import com.hmdp.utils.RateLimiterClient;
 import jakarta.annotation.Resource;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.async.DeferredResult;
 
 import java.util.concurrent.TimeUnit;
 
@@ -28,6 +31,9 @@ public class VoucherOrderController {
     @Resource
     private RateLimiterClient rateLimiterClient;
 
+    @Resource
+    private OrderResultNotifier orderResultNotifier;
+
     @Resource
     private RateLimiter rateLimiter = RateLimiter.create(30.0,10, TimeUnit.SECONDS);
 
@@ -41,6 +47,19 @@ public class VoucherOrderController {
     }
     @GetMapping("/seckill/status/{orderId}")
     public Result getStatus(@PathVariable("orderId") Long orderId) {
-        return Result.ok(voucherOrderService.getOrderStatus(orderId).getMessage()) ;
+        OrderStatus status = voucherOrderService.getOrderStatus(orderId);
+        if (status == null) {
+            return Result.fail("订单不存在或已过期: " + orderId);
+        }
+        return Result.ok(status.getMessage());
+    }
+
+    /**
+     * 长轮询订单结果: 订单成功或失败时立即返回, 超时返回 pending
+     * <p>异步请求, 挂起期间不占用 Tomcat 线程</p>
+     */
+    @GetMapping("/seckill/result/{orderId}")
+    public DeferredResult<Result> awaitResult(@PathVariable("orderId") Long orderId) {
+        return orderResultNotifier.await(orderId);
     }
 }
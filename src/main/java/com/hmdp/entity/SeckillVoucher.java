@@ -37,6 +37,21 @@ public class SeckillVoucher implements Serializable {
      */
     private Integer stock;
 
+    /**
+     * 每人限购数
+     */
+    private Integer quota;
+
+    /**
+     * Redis 库存分段数
+     */
+    private Integer segments;
+
+    /**
+     * Redis 下单记录编码 hash/bitmap
+     */
+    private String membership;
+
     /**
      * 创建时间
      */
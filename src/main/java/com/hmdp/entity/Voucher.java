@@ -78,6 +78,24 @@ public class Voucher implements Serializable {
     @TableField(exist = false)
     private Integer stock;
 
+    /**
+     * 库存分段数, 热点券可以把库存拆到多个 Redis 分片上
+     */
+    @TableField(exist = false)
+    private Integer segments;
+
+    /**
+     * 每人限购数, 默认一人一单
+     */
+    @TableField(exist = false)
+    private Integer quota;
+
+    /**
+     * 下单记录编码, 一人一单的券可以用 bitmap 压缩内存
+     */
+    @TableField(exist = false)
+    private String membership;
+
     /**
      * 生效时间
      */
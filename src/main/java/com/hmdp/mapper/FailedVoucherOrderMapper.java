@@ -2,6 +2,17 @@ package com.hmdp.mapper;
 
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
 import com.hmdp.entity.FailedVoucherOrder;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.List;
 
 public interface FailedVoucherOrderMapper extends BaseMapper<FailedVoucherOrder> {
+
+    /**
+     * 多行插入 INSERT IGNORE INTO ... VALUES (...),(...),..., 死信重复投递时已经记录过的订单被跳过
+     *
+     * @param orders 落库失败的订单
+     * @return 实际插入的行数
+     */
+    int insertIgnoreBatch(@Param("orders") List<FailedVoucherOrder> orders);
 }
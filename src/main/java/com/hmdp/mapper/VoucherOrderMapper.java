@@ -2,6 +2,11 @@ package com.hmdp.mapper;
 
 import com.baomidou.mybatisplus.core.mapper.BaseMapper;
 import com.hmdp.entity.VoucherOrder;
+import org.apache.ibatis.annotations.Param;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.SortedMap;
 
 /**
  * <p>
@@ -13,4 +18,31 @@ import com.hmdp.entity.VoucherOrder;
  */
 public interface VoucherOrderMapper extends BaseMapper<VoucherOrder> {
 
+    /**
+     * 多行插入 INSERT IGNORE INTO ... VALUES (...),(...),..., 主键已经存在的行被跳过
+     *
+     * @param orders 预先创建好的订单
+     * @return 实际插入的行数
+     */
+    int insertIgnoreBatch(@Param("orders") List<VoucherOrder> orders);
+
+    /**
+     * 一条多行 INSERT ... ON DUPLICATE KEY UPDATE 给一张券的多个用户累加已占用名额, 计数行不存在时插入.
+     * 按 VALUES 的顺序加行锁, 调用方按 userId 排序传入, 并发的批次之间不会死锁
+     *
+     * @param counts userId -> 本次占用的名额数, 按 userId 有序
+     */
+    int addQuota(@Param("voucherId") Long voucherId, @Param("counts") SortedMap<Long, Integer> counts);
+
+    /**
+     * 统计这些用户中已占用名额超过限购数的人数, 在 {@link #addQuota} 的同一事务内调用, 行锁还没有释放
+     *
+     * @return 大于 0 说明有用户超出限购数, 调用方需要回滚事务
+     */
+    int countOverQuota(@Param("voucherId") Long voucherId, @Param("userIds") Collection<Long> userIds);
+
+    /**
+     * 订单取消, 归还 n 个限购名额
+     */
+    int releaseQuota(@Param("userId") Long userId, @Param("voucherId") Long voucherId, @Param("n") int n);
 }
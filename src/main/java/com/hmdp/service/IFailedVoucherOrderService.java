@@ -3,5 +3,9 @@ package com.hmdp.service;
 import com.baomidou.mybatisplus.extension.service.IService;
 import com.hmdp.entity.FailedVoucherOrder;
 
+import java.util.List;
+
 public interface IFailedVoucherOrderService extends IService<FailedVoucherOrder> {
+
+    int saveBatchIgnore(List<FailedVoucherOrder> orders);
 }
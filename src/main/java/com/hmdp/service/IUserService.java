@@ -3,8 +3,12 @@ package com.hmdp.service;
 import com.baomidou.mybatisplus.extension.service.IService;
 import com.hmdp.dto.LoginFormDTO;
 import com.hmdp.dto.Result;
+import com.hmdp.dto.UserDTO;
 import com.hmdp.entity.User;
 
+import java.util.Collection;
+import java.util.Map;
+
 /**
  * <p>
  * 服务类
@@ -24,4 +28,11 @@ public interface IUserService extends IService<User> {
     Result signCount();
 
     Result logout(String token);
+
+    /**
+     * 批量查询用户公开信息, 走缓存
+     *
+     * @return 按 ids 顺序排列的 userId -> UserDTO, 不存在的用户不包含在内
+     */
+    Map<Long, UserDTO> queryUserDTOs(Collection<Long> ids);
 }
@@ -5,6 +5,8 @@ import com.hmdp.dto.Result;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.utils.OrderStatus;
 
+import java.util.List;
+
 /**
  * <p>
  * 服务类
@@ -24,5 +26,11 @@ public interface IVoucherOrderService extends IService<VoucherOrder> {
 
     boolean createOrder(VoucherOrder order);
 
+    List<VoucherOrder> createOrderBatch(List<VoucherOrder> orders);
+
+    List<VoucherOrder> cancelUnpaidOrders(List<Long> orderIds);
+
     OrderStatus getOrderStatus(Long orderId);
+
+    void failOrder(VoucherOrder order);
 }
@@ -1,6 +1,5 @@
 package com.hmdp.service.impl;
 
-import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
@@ -24,6 +23,7 @@ import org.springframework.stereotype.Service;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import static com.hmdp.utils.RedisConstants.BLOG_LIKED_KEY;
@@ -75,12 +75,8 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
             return Result.ok(Collections.emptyList());
         }
         List<Long> ids = top5Likers.stream().map(Long::valueOf).toList();
-        String idStr = StrUtil.join(",", ids);// 1,3,2,4
-
-        List<UserDTO> userDTOs = userService.query()
-                .in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list()
-                .stream()
-                .map((user) -> BeanUtil.copyProperties(user, UserDTO.class)).toList();
+        // 按点赞顺序批量查询
+        List<UserDTO> userDTOs = new ArrayList<>(userService.queryUserDTOs(ids).values());
         return Result.ok(userDTOs);
     }
 
@@ -116,10 +112,14 @@ public class BlogServiceImpl extends ServiceImpl<BlogMapper, Blog> implements IB
         // 5.根据id查询blog
         String idStr = StrUtil.join(",", ids);
         List<Blog> blogs = query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list();
-
+        // 5.1.批量查询blog有关的用户
+        Map<Long, UserDTO> authors = userService.queryUserDTOs(blogs.stream().map(Blog::getUserId).toList());
         for (Blog blog : blogs) {
-            // 5.1.查询blog有关的用户
-            setBlogUserInfo(blog);
+            UserDTO author = authors.get(blog.getUserId());
+            if (author != null) {
+                blog.setName(author.getNickName());
+                blog.setIcon(author.getIcon());
+            }
             // 5.2.查询blog是否被点赞
             setBlogIsLike(blog);
         }
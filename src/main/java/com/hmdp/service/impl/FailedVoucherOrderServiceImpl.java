@@ -6,7 +6,19 @@ import com.hmdp.mapper.FailedVoucherOrderMapper;
 import com.hmdp.service.IFailedVoucherOrderService;
 import org.springframework.stereotype.Service;
 
+import java.util.List;
+
 @Service
 public class FailedVoucherOrderServiceImpl extends ServiceImpl<FailedVoucherOrderMapper,FailedVoucherOrder> implements IFailedVoucherOrderService {
 
+    /**
+     * 一条多行 INSERT 记录一批失败订单, 已经记录过的跳过
+     */
+    @Override
+    public int saveBatchIgnore(List<FailedVoucherOrder> orders) {
+        if (orders.isEmpty()) {
+            return 0;
+        }
+        return getBaseMapper().insertIgnoreBatch(orders);
+    }
 }
@@ -1,5 +1,6 @@
 package com.hmdp.service.impl;
 
+import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONUtil;
 import com.baomidou.mybatisplus.extension.plugins.pagination.Page;
@@ -24,8 +25,11 @@ import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.util.*;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Function;
+import java.util.stream.Collectors;
 
+import static com.hmdp.utils.RedisConstants.CACHE_DATA_TTL;
 import static com.hmdp.utils.RedisConstants.CACHE_SHOP_KEY;
 import static com.hmdp.utils.RedisConstants.SHOP_GEO_KEY;
 import static com.hmdp.utils.SystemConstants.DEFAULT_PAGE_SIZE;
@@ -59,7 +63,7 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             warming();
             return;
         }
-        if (methodName.equals("nullobject")) {
+        if (methodName.equals("nullobject") || methodName.equals("xfetch")) {
             return;// do nothing
         } else {
             List<Long> list = query().list().stream().map(Shop::getId).toList();
@@ -89,6 +93,8 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
                     shopData = cacheClient.getAvoidHotSpotInvalidUsingLogicalExpire(CACHE_SHOP_KEY, id, Shop.class, dbFallback);
             case "mutex" ->
                     shopData = cacheClient.getAvoidHotspotInvalidUsingMutex(CACHE_SHOP_KEY, id, Shop.class, dbFallback);
+            case "xfetch" ->
+                    shopData = cacheClient.getUsingXFetch(CACHE_SHOP_KEY, id, Shop.class, dbFallback);
             default -> shopData = cacheClient.getAvoidPenetrationUsingBloom(CACHE_SHOP_KEY, id, Shop.class, dbFallback);
         }
         if (shopData == null) {
@@ -107,9 +113,9 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
 //            httpServletResponse.setStatus(HttpServletResponse.SC_BAD_REQUEST);
             return Result.fail("商铺更新失败: " + id);
         }
-        // TODO 2. 删除redis缓存
+        // TODO 2. 删除redis缓存, 通知所有节点清除进程内缓存
         String shopKey = CACHE_SHOP_KEY + id;
-        Boolean isDelete = stringRedisTemplate.delete(shopKey);
+        boolean isDelete = cacheClient.invalidate(shopKey);
         return Result.ok(isDelete);
     }
 
@@ -149,24 +155,47 @@ public class ShopServiceImpl extends ServiceImpl<ShopMapper, Shop> implements IS
             ids.add(Long.valueOf(shopId));
             resultMap.put(shopId, distance);
         });
-        //按照id查询,并且要返回按照指定排序好的list
-        String idStr = StrUtil.join(",", ids);
-        List<Shop> shops = query().in("id", ids)
-                .last("ORDER BY FIELD(id," + idStr + ")").list();
-        //distance不是数据库字段,需要手动设置值
-        for (Shop shop : shops) {
+        //按照id批量查询缓存, 缺失的一次查数据库, 结果按照 ids 的顺序排好
+        List<Shop> shops = new ArrayList<>(ids.size());
+        for (Shop cached : getShops(ids).values()) {
+            //distance不是数据库字段,需要手动设置值; 缓存里的对象是共享的, 复制一份再设置
+            Shop shop = BeanUtil.copyProperties(cached, Shop.class);
             shop.setDistance(resultMap.get(shop.getId().toString()).getValue());
+            shops.add(shop);
         }
         // 返回数据
         return Result.ok(shops);
     }
+    /**
+     * 批量查询店铺, 走缓存; 逻辑过期和 xfetch 模式下缓存的是 RedisData, 直接查数据库
+     */
+    private Map<Long, Shop> getShops(List<Long> ids) {
+        Function<Collection<Long>, Map<Long, Shop>> dbFallback = shopIds -> listByIds(shopIds).stream()
+                .collect(Collectors.toMap(Shop::getId, Function.identity()));
+        return switch (methodName) {
+            case "logicalexpire", "xfetch" -> {
+                String idStr = StrUtil.join(",", ids);
+                yield query().in("id", ids).last("ORDER BY FIELD(id," + idStr + ")").list().stream()
+                        .collect(Collectors.toMap(Shop::getId, Function.identity(), (a, b) -> a, LinkedHashMap::new));
+            }
+            case "nullobject", "mutex" -> cacheClient.getAll(CACHE_SHOP_KEY, ids, Shop.class, dbFallback);
+            default -> cacheClient.getAllUsingBloom(CACHE_SHOP_KEY, ids, Shop.class, dbFallback);
+        };
+    }
+
     @Transactional
     @Override
     public Result saveShop(Shop shop) {
         save(shop); // 写入数据库
-        // 写入Redis
+        // 写入Redis, 覆盖可能存在的空值缓存, 通知所有节点清除进程内缓存
         String key = CACHE_SHOP_KEY + shop.getId();
-        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop));
+        if ("xfetch".equals(methodName)) {
+            // xfetch 模式读的是带逻辑过期时间的 RedisData, 没有重建耗时记录为 0
+            cacheClient.setWithXFetch(key, shop, 0, CACHE_DATA_TTL, TimeUnit.MINUTES);
+        } else {
+            stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(shop));
+        }
+        cacheClient.invalidateL1(key);
         // 写入 BloomFilter
         if ("bloom".equals(methodName)) {
             bloomFilter.put(shop.getId());
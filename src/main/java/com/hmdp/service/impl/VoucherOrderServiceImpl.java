@@ -3,40 +3,39 @@ package com.hmdp.service.impl;
 import cn.hutool.core.bean.BeanUtil;
 import com.baomidou.mybatisplus.extension.service.impl.ServiceImpl;
 import com.hmdp.dto.Result;
-import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.FailedVoucherOrder;
 import com.hmdp.entity.VoucherOrder;
 import com.hmdp.mapper.VoucherOrderMapper;
+import com.hmdp.service.IFailedVoucherOrderService;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherOrderService;
+import com.hmdp.utils.IIdWorker;
+import com.hmdp.utils.IOrderPipeline;
+import com.hmdp.utils.IOrderStatusStore;
+import com.hmdp.utils.OrderResultNotifier;
 import com.hmdp.utils.OrderStatus;
-import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.OrderTimeoutWheel;
+import com.hmdp.utils.SeckillEligibilityBatcher;
+import com.hmdp.utils.SeckillStockClient;
+import com.hmdp.utils.SoldOutRegistry;
 import com.hmdp.utils.UserHolder;
-import jakarta.annotation.PostConstruct;
 import jakarta.annotation.Resource;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
-import org.springframework.amqp.core.MessageDeliveryMode;
-import org.springframework.amqp.rabbit.connection.CorrelationData;
-import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.core.io.ClassPathResource;
-import org.springframework.data.redis.connection.stream.*;
+import org.springframework.dao.DuplicateKeyException;
 import org.springframework.data.redis.core.StringRedisTemplate;
-import org.springframework.data.redis.core.script.DefaultRedisScript;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.TransactionAspectSupport;
 
-import java.time.Duration;
-import java.time.LocalDateTime;
-import java.util.Arrays;
-import java.util.List;
-import java.util.Map;
-import java.util.concurrent.ConcurrentHashMap;
+import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -52,20 +51,14 @@ import static com.hmdp.utils.RedisConstants.*;
 @Slf4j
 @Service
 public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, VoucherOrder> implements IVoucherOrderService {
-    //判断下单资格脚本
-    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
-
-    static {
-        SECKILL_SCRIPT = new DefaultRedisScript<>();
-        SECKILL_SCRIPT.setLocation(new ClassPathResource("secKill.lua"));
-        SECKILL_SCRIPT.setResultType(Long.class);
-    }
-
     @Resource
     private ISeckillVoucherService secKillVoucherService;
 
     @Resource
-    private RedisIdWorker redisIdWorker;
+    private IFailedVoucherOrderService failedVoucherOrderService;
+
+    @Resource
+    private IIdWorker idWorker;
 
     @Resource
     private StringRedisTemplate stringRedisTemplate;
@@ -74,31 +67,30 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     private RedissonClient redissonClient;
 
     @Resource
-    private RabbitTemplate rabbitTemplate;
-
-    @PostConstruct
-    public void init() {
-        // 设置Confirm回调
-        rabbitTemplate.setConfirmCallback((correlationData, ack, cause) -> {
-            assert correlationData != null;
-            if (ack) {
-                log.info("Exchange received the message successfully: {}", correlationData.getId());
-            } else {
-                log.warn("Failed to arrive exchange: {} message: {}", cause, correlationData.getId());
-            }
-        });
-        rabbitTemplate.setReturnsCallback(returned -> {
-            log.warn("Failed to route: " + returned.getMessage());
-        });
-        rabbitTemplate.setMandatory(true);
-    }
+    private SoldOutRegistry soldOutRegistry;
+
+    @Resource
+    private SeckillStockClient seckillStockClient;
+
+    @Resource
+    private SeckillEligibilityBatcher eligibilityBatcher;
+
+    @Resource
+    private IOrderPipeline orderPipeline;
 
     @Autowired
     private IVoucherOrderService proxy;
 
     private final ExecutorService executorService = Executors.newFixedThreadPool(1);
 
-    public Map<Long, OrderStatus> orderStatus = new ConcurrentHashMap<>();
+    @Resource
+    private IOrderStatusStore orderStatusStore;
+
+    @Resource
+    private OrderResultNotifier orderResultNotifier;
+
+    @Resource
+    private OrderTimeoutWheel orderTimeoutWheel;
 
     /**
      * 判断是否有下单资格,解决了超卖和一人一单的问题
@@ -108,52 +100,71 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
      */
     @Override
     public Result secKillOrderLuaScript(Long voucherId) {
-        Long orderId = redisIdWorker.nextId(ORDER_KEY_PREFIX);
+        // 本地已经标记售罄, 不用再访问 Redis
+        if (soldOutRegistry.isSoldOut(voucherId)) {
+            return Result.fail("限量优惠券已抢完");
+        }
         Long userId = UserHolder.getUser().getId();
-        //result:执行lua脚本 redis是单线程 所以不用担心线程安全问题
-        Long result = stringRedisTemplate.execute(SECKILL_SCRIPT,
-                Arrays.asList(SECKILL_STOCK_PREFIX,SECKILL_ORDER_PREFIX),
-                voucherId.toString(),
-                userId.toString());
-        assert result != null;
-        int r = result.intValue();// TODO 判断是否有下单的资格
+        // 订单ID在判断资格之前生成: stream 模式下脚本扣库存的同时写入订单要用到,
+        // 发号失败(租约失效, 时钟回拨)时也还没有占用库存和限购名额, 不需要回滚
+        boolean appendsInScript = orderPipeline.appendsInScript();
+        Long orderId = idWorker.nextId(ORDER_KEY_PREFIX);
+        //r:执行lua脚本 redis是单线程 所以不用担心线程安全问题
+        int r;// TODO 判断是否有下单的资格
+        if (appendsInScript) {
+            r = seckillStockClient.acquire(voucherId, userId, orderId);
+        } else if (eligibilityBatcher.isEnabled()) {
+            r = eligibilityBatcher.acquire(voucherId, userId, orderId);
+        } else {
+            r = seckillStockClient.acquire(voucherId, userId);
+        }
+        if (r == 1) {
+            soldOutRegistry.markSoldOut(voucherId);
+        }
         if (r != 0) {
-            return Result.fail(r == 1 ? "限量优惠券已抢完" : "您已经抢过此限量优惠券了");
+            return Result.fail(switch (r) {
+                case 1 -> "限量优惠券已抢完";
+                case 4 -> "活动未开始";
+                case 5 -> "活动已结束";
+                default -> "您已经达到此限量优惠券的限购数量了";
+            });
         }
         VoucherOrder order = new VoucherOrder();
         order.setId(orderId);
         order.setUserId(userId);
         order.setVoucherId(voucherId);
-        rabbitTemplate.convertAndSend("hmdianping.direct",
-                "direct.seckill", order, message -> {
-                        message.getMessageProperties().setDeliveryMode(MessageDeliveryMode.PERSISTENT);
-                        message.getMessageProperties().setHeader("retry-count", "0");
-                        return message;
-                    },
-                new CorrelationData("orderId-"+orderId)
-        );
-        // 将订单状态存到 OrderStatus 内存中
-        orderStatus.putIfAbsent(orderId, OrderStatus.PENDING);
+        // 记录订单状态, 由消费者更新为成功或失败
+        orderStatusStore.put(orderId, OrderStatus.PENDING);
+        // 放入订单管道就返回, 不等待落库
+        if (!appendsInScript && !orderPipeline.submit(order)) {
+            seckillStockClient.rollback(voucherId, userId, orderId);
+            orderStatusStore.put(orderId, OrderStatus.FAILED);
+            return Result.fail("sorry, service is too hot, plz try again");
+        }
         return Result.ok(orderId);
     }
 
     /**
      * <p>异步创建订单,与之前的不同点是订单所有信息是提前生成的</p>
-     * 之前已经判断了超卖和一人一单,此处只是持久化到数据库的操作
+     * 之前已经判断了超卖和限购,此处只是持久化到数据库的操作.
+     * 订单ID在入队前就生成好了: 先插入订单, 主键冲突说明同一订单已经落库(消息重复投递), 直接视为成功.
+     * 新插入的订单再在 tb_voucher_quota 上累加并检查限购名额, 数据库兜底 Redis 的限购判断
      *
      * @param order 提前创建好的订单对象
-     * @return
+     * @return 订单是否已经落库
      */
     @Transactional(rollbackFor = Exception.class)
     @Override
     public boolean createOrder(VoucherOrder order) {
-        Long userId = order.getUserId();
-        Long voucherId = order.getVoucherId();
-        Long count = query().eq("user_id", userId)
-                .eq("voucher_id", voucherId).count();
-        if (count > 0) {
-            log.error("用户已经购买过了");
-            return false;
+        try {
+            save(order);
+        } catch (DuplicateKeyException e) {
+            log.warn("订单已经落库: {}", order);
+            return true;
+        }
+        if (!acquireQuota(order.getVoucherId(), new TreeMap<>(Map.of(order.getUserId(), 1)))) {
+            // 订单已经插入, 抛异常回滚事务
+            throw new RuntimeException("超出限购数: " + order.getVoucherId());
         }
         //乐观锁核心: stock和之前相等才更新 问题: 如果两个线程发生了冲突,必定有一个会失败
         //库存比较特殊可以并发扣减, stock > 0 就可以更新
@@ -161,14 +172,104 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         //如果没有数据库的锁,多个线程可以同时对数据进行修改,直接影响业务层
         boolean success = secKillVoucherService.update()
                 .setSql("stock = stock - 1")
-                .eq("voucher_id", voucherId)
+                .eq("voucher_id", order.getVoucherId())
                 .gt("stock", 0).update();  //只是限量,不是唯一,所以只需要保证stock大于0即可
 //                .eq("stock", formerStock).update();//如果两个线程发生了冲突,必定有一个会失败
         if (!success) {
-            log.error("库存不足");
-            return false;
+            // 订单已经插入, 抛异常回滚事务
+            throw new RuntimeException("库存不足: " + order.getVoucherId());
+        }
+        // 开始计算支付超时
+        orderTimeoutWheel.track(List.of(order.getId()));
+        return true;
+    }
+
+    /**
+     * <p>批量创建订单, 一个事务内完成整批订单的落库</p>
+     * 每张券先查出已经落库的订单(重复投递), 只为新订单按用户占用限购名额, 再一条 INSERT IGNORE 多行插入,
+     * 实际插入的行数就是这张券要扣的库存 k, 合并成一条 stock = stock - k
+     *
+     * @param orders 提前创建好的订单对象
+     * @return 已经落库的订单(包括之前投递时已经落库的同一订单)
+     */
+    @Transactional(rollbackFor = Exception.class)
+    @Override
+    public List<VoucherOrder> createOrderBatch(List<VoucherOrder> orders) {
+        if (orders == null || orders.isEmpty()) {
+            return Collections.emptyList();
+        }
+        Map<Long, List<VoucherOrder>> byVoucher = orders.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId));
+        List<VoucherOrder> created = new ArrayList<>(orders.size());
+        for (Map.Entry<Long, List<VoucherOrder>> entry : byVoucher.entrySet()) {
+            List<VoucherOrder> group = entry.getValue();
+            created.addAll(group);
+            //TODO 1. 跳过已经落库的订单(重复投递), 它们之前已经占用过名额和库存
+            Set<Long> existing = query().select("id")
+                    .in("id", group.stream().map(VoucherOrder::getId).toList())
+                    .list().stream().map(VoucherOrder::getId).collect(Collectors.toSet());
+            List<VoucherOrder> fresh = group.stream().filter(o -> !existing.contains(o.getId())).toList();
+            if (fresh.isEmpty()) {
+                continue;
+            }
+            //TODO 2. 按用户合并, 一条多行 upsert 占用限购名额, 按 userId 排序加行锁
+            SortedMap<Long, Integer> countByUser = fresh.stream()
+                    .collect(Collectors.groupingBy(VoucherOrder::getUserId, TreeMap::new,
+                            Collectors.summingInt(o -> 1)));
+            if (!acquireQuota(entry.getKey(), countByUser)) {
+                throw new RuntimeException("超出限购数: " + entry.getKey());
+            }
+            //TODO 3. 多行插入, 和并发的重复投递撞上时行数对不上, 整批回滚重来
+            int k = getBaseMapper().insertIgnoreBatch(fresh);
+            if (k != fresh.size()) {
+                throw new RuntimeException("订单被并发落库: " + entry.getKey());
+            }
+            //TODO 4. 按券合并库存扣减, 同一行只加一次行锁
+            boolean success = secKillVoucherService.update()
+                    .setSql("stock = stock - " + k)
+                    .eq("voucher_id", entry.getKey())
+                    .ge("stock", k).update();
+            if (!success) {
+                // 整批回滚, 由调用方退化为逐条处理
+                throw new RuntimeException("库存不足: " + entry.getKey());
+            }
+        }
+        orderTimeoutWheel.track(created.stream().map(VoucherOrder::getId).toList());
+        return created;
+    }
+
+    /**
+     * 取消超时未支付的订单: 锁住其中仍然未支付的订单, 改为已取消, 按券合并回补库存, 按用户归还限购名额
+     *
+     * @param orderIds 到期的订单ID, 可能已经支付或者根本没有落库
+     * @return 本次真正取消的订单
+     */
+    @Transactional(rollbackFor = Exception.class)
+    @Override
+    public List<VoucherOrder> cancelUnpaidOrders(List<Long> orderIds) {
+        if (orderIds.isEmpty()) {
+            return Collections.emptyList();
         }
-        return save(order);
+        // 订单状态，1：未支付；4：已取消
+        List<VoucherOrder> unpaid = query().select("id", "user_id", "voucher_id")
+                .in("id", orderIds)
+                .eq("status", 1)
+                .last("FOR UPDATE").list();
+        if (unpaid.isEmpty()) {
+            return unpaid;
+        }
+        update().set("status", 4)
+                .in("id", unpaid.stream().map(VoucherOrder::getId).toList())
+                .update();
+        Map<Long, Long> countByVoucher = unpaid.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId, Collectors.counting()));
+        countByVoucher.forEach((voucherId, k) -> secKillVoucherService.update()
+                .setSql("stock = stock + " + k)
+                .eq("voucher_id", voucherId).update());
+        unpaid.stream()
+                .collect(Collectors.groupingBy(o -> List.of(o.getUserId(), o.getVoucherId()), Collectors.counting()))
+                .forEach((key, k) -> getBaseMapper().releaseQuota(key.get(0), key.get(1), k.intValue()));
+        return unpaid;
     }
 
     @Override
@@ -176,19 +277,31 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
         if(orderId == null) {
             return null;
         }
-        OrderStatus status = orderStatus.get(orderId);
-        if(status == OrderStatus.PENDING) {
-            return OrderStatus.PENDING;
-        }
-        // 如果是 成功 或者 失败 就删除并返回(防止内存溢出)
-        // 可以继承map做一个ttlMap, 定时任务清除已经过期的条目.
-        return orderStatus.remove(orderId);
+        // 条目到期自动清除, 查询不再删除, 任意节点都可以查
+        return orderStatusStore.get(orderId);
     }
 
     @Override
     public void setOrderStatus(Long orderId, OrderStatus status) {
-        orderStatus.putIfAbsent(orderId, status);
-        return;
+        orderStatusStore.put(orderId, status);
+        // 有了最终结果, 通知挂起等待的请求
+        if (status != OrderStatus.PENDING) {
+            orderResultNotifier.publish(orderId, status);
+        }
+    }
+
+    /**
+     * 订单最终落库失败: 回滚 Redis 的库存和一人一单, 订单状态置为失败, 记录失败订单
+     *
+     * @param order 落库失败的订单
+     */
+    @Override
+    public void failOrder(VoucherOrder order) {
+        seckillStockClient.rollback(order.getVoucherId(), order.getUserId(), order.getId());
+        // 库存回补了, 清除各节点的售罄标记
+        soldOutRegistry.markAvailable(order.getVoucherId());
+        setOrderStatus(order.getId(), OrderStatus.FAILED);
+        failedVoucherOrderService.save(BeanUtil.copyProperties(order, FailedVoucherOrder.class));
     }
 
     /**
@@ -199,19 +312,16 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @SneakyThrows
     @Override
     public Result secKillOrderRedisson(Long voucherId) {
-        // 查数据库
-        SeckillVoucher secKillVoucher = secKillVoucherService.getById(voucherId);
-        LocalDateTime beginTime = secKillVoucher.getBeginTime();
-        LocalDateTime endTime = secKillVoucher.getEndTime();
-        Integer formerStock = secKillVoucher.getStock();
-
-        if (beginTime.isAfter(LocalDateTime.now())) {
+        // 查激活时预热到 Redis 的活动信息, 不再访问数据库
+        Map<Object, Object> meta = seckillStockClient.meta(voucherId);
+        long now = System.currentTimeMillis();
+        if (meta.isEmpty() || Long.parseLong((String) meta.get("begin")) > now) {
             return Result.fail("活动未开始");
         }
-        if (endTime.isBefore(LocalDateTime.now())) {
+        if (Long.parseLong((String) meta.get("end")) <= now) {
             return Result.fail("活动已结束");
         }
-        if (formerStock < 1) {
+        if (soldOutRegistry.isSoldOut(voucherId)) {
             return Result.fail("限量优惠券已经抢完");
         }
         //在事务外面加锁
@@ -242,7 +352,7 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 
     /**
      * 同步创建订单 乐观锁防止超卖
-     * 订单ID是现场创建的
+     * 订单ID是现场创建的, 限购名额在 tb_voucher_quota 上累加并检查, 不依赖调用方的用户锁
      *
      * @param voucherId 秒杀券ID
      */
@@ -250,10 +360,10 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
     @Transactional(rollbackFor = Exception.class)//自己是一个事务
     public Result createOrderById(Long voucherId) {
         Long userId = UserHolder.getUser().getId();
-        Long count = query().eq("user_id", userId)
-                .eq("voucher_id", voucherId).count();
-        if (count > 0) {
-            return Result.fail("已经抢过此限量优惠券了");
+        if (!acquireQuota(voucherId, new TreeMap<>(Map.of(userId, 1)))) {
+            // 计数已经累加, 回滚事务
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            return Result.fail("已经达到此限量优惠券的限购数量了");
         }
         boolean success = secKillVoucherService.update()
                 .setSql("stock = stock - 1")
@@ -262,128 +372,34 @@ public class VoucherOrderServiceImpl extends ServiceImpl<VoucherOrderMapper, Vou
 //                .eq("stock", formerStock).update();//如果两个线程发生了冲突,必定有一个会失败
 
         if (!success) {
+            // 归还刚占用的限购名额
+            TransactionAspectSupport.currentTransactionStatus().setRollbackOnly();
+            soldOutRegistry.markSoldOut(voucherId);
             return Result.fail("获取优惠券失败,请稍后再试");
         }
 
         VoucherOrder voucherOrder = new VoucherOrder();
-        long orderId = redisIdWorker.nextId(ORDER_KEY_PREFIX);
+        long orderId = idWorker.nextId(ORDER_KEY_PREFIX);
 
         voucherOrder.setId(orderId);
         voucherOrder.setUserId(userId);
         voucherOrder.setVoucherId(voucherId);
 
         save(voucherOrder);
+        orderTimeoutWheel.track(List.of(orderId));
         return Result.ok(orderId);
     }
 
     /**
-     * 更新数据库的任务实现类
+     * 为一张券的多个用户占用限购名额: 先一条多行 upsert 累加, 再一条查询检查有没有人超出限购数,
+     * 不管多少个用户都是两条语句. 累加已经生效, 返回 false 时调用方必须回滚事务
+     *
+     * @param countByUser userId -> 占用的名额数, 按 userId 有序, 加行锁的顺序一致, 批次之间不会死锁
+     * @return 是否占用成功, false 说明有用户超出限购数
      */
-    @Deprecated
-    private class VoucherOrderHandler implements Runnable {
-        @Deprecated
-        @Override
-        public void run() {
-            while (true) {
-                try {
-                    // 1.获取消息队列中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS s1 >
-                    List<MapRecord<String, Object, Object>> list =
-                            stringRedisTemplate.opsForStream().read(
-                                    Consumer.from("g1", "c1"),
-                                    StreamReadOptions.empty().count(1).block(Duration.ofSeconds(2)),
-                                    StreamOffset.create("stream.orders", ReadOffset.lastConsumed())
-                            );
-                    // 2.判断订单信息是否为空
-                    if (list == null || list.isEmpty()) {
-                        // 如果为null，说明没有消息，继续下一次循环
-                        continue;
-                    }
-                    // 解析数据
-                    MapRecord<String, Object, Object> record = list.getFirst();
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    // 3.创建订单
-//                    handleVoucherOrder(voucherOrder);
-                    proxy.createOrder(voucherOrder);
-                    // 4.确认消息 XACK
-                    stringRedisTemplate.opsForStream().acknowledge("s1", "g1", record.getId());
-                } catch (Exception e) {
-                    log.error("处理订单异常", e);
-                    //处理异常消息
-                    handlePendingList();
-                }
-            }
-        }
-
-        /**
-         * 异常消息处理:从pending-list中读取
-         */
-        @Deprecated
-        @SuppressWarnings("unused")
-        private void handlePendingList() {
-            while (true) {
-                try {
-                    // 1.获取pending-list中的订单信息 XREADGROUP GROUP g1 c1 COUNT 1 BLOCK 2000 STREAMS s1 0
-                    List<MapRecord<String, Object, Object>> list =
-                            stringRedisTemplate.opsForStream().read(
-                                    Consumer.from("g1", "c1"),
-                                    StreamReadOptions.empty().count(1),
-                                    StreamOffset.create("stream.orders", ReadOffset.from("0"))
-                            );
-                    // 2.判断订单信息是否为空
-                    if (list == null || list.isEmpty()) {
-                        // 如果为null，说明没有异常消息，结束循环
-                        break;
-                    }
-                    // 解析数据
-                    MapRecord<String, Object, Object> record = list.getFirst();
-                    Map<Object, Object> value = record.getValue();
-                    VoucherOrder voucherOrder = BeanUtil.fillBeanWithMap(value, new VoucherOrder(), true);
-                    // 3.创建订单
-//                    handleVoucherOrder(voucherOrder);
-                    proxy.createOrder(voucherOrder);
-                    // 4.确认消息 XACK
-                    stringRedisTemplate.opsForStream().acknowledge("s1", "g1", record.getId());
-                } catch (Exception e) {
-                    log.error("处理pending订单异常", e);
-                    try {
-                        Thread.sleep(20);
-                    } catch (Exception exception) {
-                        log.error("interrupted", e);
-                    }
-                }
-            }
-        }
-
-
-        /**
-         * 分布式锁 进行一个兜底 (optional)
-         *
-         * @param order 预先创建好的订单对象
-         */
-        @Deprecated
-        private void handleVoucherOrder(VoucherOrder order) {
-            //1.获取用户 todo 注意是从order中取用户id
-            Long userId = order.getUserId();
-            // 2.创建锁对象
-            RLock redisLock = redissonClient.getLock("lock:order:" + userId);
-            // 3.尝试获取锁
-            boolean isLockGot = redisLock.tryLock();
-            // 4.判断是否获得锁成功
-            if (!isLockGot) {
-                // 获取锁失败，直接返回失败或者重试
-                log.error("不允许重复下单!!!!");
-                return;
-            }
-            try {
-                //异步持久化到数据库
-                //注意：由于是spring的事务是放在threadLocal中，此时的是多线程，事务会失效
-                proxy.createOrder(order);
-            } finally {
-                // 释放锁
-                redisLock.unlock();
-            }
-        }
+    private boolean acquireQuota(Long voucherId, SortedMap<Long, Integer> countByUser) {
+        getBaseMapper().addQuota(voucherId, countByUser);
+        return getBaseMapper().countOverQuota(voucherId, countByUser.keySet()) == 0;
     }
 
 }
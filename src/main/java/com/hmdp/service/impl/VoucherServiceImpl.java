@@ -7,14 +7,16 @@ import com.hmdp.entity.Voucher;
 import com.hmdp.mapper.VoucherMapper;
 import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IVoucherService;
+import com.hmdp.utils.SeckillActivationScheduler;
 import jakarta.annotation.Resource;
-import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.util.List;
 
-import static com.hmdp.utils.RedisConstants.SECKILL_STOCK_PREFIX;
+import static com.hmdp.utils.RedisConstants.MEMBERSHIP_BITMAP;
+import static com.hmdp.utils.RedisConstants.MEMBERSHIP_HASH;
 
 /**
  * <p>
@@ -30,7 +32,13 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
     @Resource
     private ISeckillVoucherService seckillVoucherService;
     @Resource
-    private StringRedisTemplate stringRedisTemplate;
+    private SeckillActivationScheduler activationScheduler;
+
+    @Value("${custom.seckill.defaultSegments}")
+    private Integer defaultSegments;
+
+    @Value("${custom.seckill.defaultMembership}")
+    private String defaultMembership;
 
     @Override
     public Result queryVoucherOfShop(Long shopId) {
@@ -51,9 +59,15 @@ public class VoucherServiceImpl extends ServiceImpl<VoucherMapper, Voucher> impl
         seckillVoucher.setStock(voucher.getStock());
         seckillVoucher.setBeginTime(voucher.getBeginTime());
         seckillVoucher.setEndTime(voucher.getEndTime());
+        seckillVoucher.setQuota(voucher.getQuota() == null ? 1 : voucher.getQuota());
+        // 热点券按分段数拆分库存
+        seckillVoucher.setSegments(voucher.getSegments() == null ? defaultSegments : voucher.getSegments());
+        // bitmap 每个用户只有一位, 限购多张的券只能用 hash
+        String membership = voucher.getMembership() == null ? defaultMembership : voucher.getMembership();
+        seckillVoucher.setMembership(seckillVoucher.getQuota() == 1 && MEMBERSHIP_BITMAP.equals(membership)
+                ? MEMBERSHIP_BITMAP : MEMBERSHIP_HASH);
         seckillVoucherService.save(seckillVoucher);
-        //todo 保存库存信息到redis中
-        stringRedisTemplate.opsForValue().set(SECKILL_STOCK_PREFIX + voucher.getId(),
-                String.valueOf(voucher.getStock()));
+        //todo 快开始的券立即预热到redis中, 其余的由激活调度器在开始前预热
+        activationScheduler.activateIfDue(seckillVoucher);
     }
 }
@@ -3,17 +3,40 @@ package com.hmdp.utils;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.json.JSONObject;
 import cn.hutool.json.JSONUtil;
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
 import com.google.common.hash.BloomFilter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
 import jakarta.annotation.Resource;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 import static com.hmdp.utils.RedisConstants.*;
 
@@ -21,6 +44,12 @@ import static com.hmdp.utils.RedisConstants.*;
  * <p>
  * 缓存工具类
  * </p>
+ * 可选的进程内 L1 缓存(Caffeine, W-TinyLFU 准入 + 容量上限 + 写入后过期)放在 Redis(L2) 前面,
+ * L1 存放反序列化以后的对象, 命中时既不访问网络也不解析 JSON; 返回的是共享对象, 调用方不要修改.
+ * 数据变更时调用 {@link #invalidate(String)} 删除 Redis 并通过 pub/sub 让所有节点清除 L1,
+ * pub/sub 丢消息时 L1 的过期时间兜底.
+ * 每次读取都交给 {@link HotKeyDetector} 采样, 被判定为热点的 key 不论 L1 是否开启都提升到本地热点副本,
+ * 按逻辑过期处理: 到期后后台刷新, 期间继续返回旧值, 突发流量的店铺几秒内就由本地副本承接
  *
  * @author scatteredream
  * @since 2024-11-01
@@ -29,14 +58,208 @@ import static com.hmdp.utils.RedisConstants.*;
 @Component
 public class CacheClient {
     public static final ExecutorService CACHE_REBUILD_EXECUTOR = Executors.newFixedThreadPool(10);
+    private static final String HOT_FLIGHT_PREFIX = "hot:";
     private final StringRedisTemplate stringRedisTemplate;
     @Resource
     private BloomFilter<Long> bloomFilter;
 
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+
+    @Value("${custom.hotKey.refresh}")
+    private Long hotRefresh;
+
+    @Value("${custom.xfetchBeta}")
+    private Double xfetchBeta;
+
+    @Value("${custom.l1.enabled}")
+    private Boolean l1Enabled;
+
+    @Value("${custom.l1.maxSize}")
+    private Long l1MaxSize;
+
+    @Value("${custom.l1.ttl}")
+    private Long l1Ttl;
+
+    // key -> 反序列化后的对象, 未开启时为 null
+    private Cache<String, Object> l1;
+
+    private final LongAdder l2Hits = new LongAdder();
+
+    private final LongAdder l2Misses = new LongAdder();
+
+    // key -> 本节点正在进行的加载, 同一个 key 的并发未命中只加载一次
+    private final ConcurrentHashMap<String, CompletableFuture<Object>> inflight = new ConcurrentHashMap<>();
+
+    // 热点 key -> 本地副本, 不受 L1 开关影响, 最多 topK 个, 降级时删除
+    private final ConcurrentHashMap<String, HotEntry> hotTier = new ConcurrentHashMap<>();
+
+    private record HotEntry(Object value, long refreshAt) {
+    }
+
+    // 本节点正在后台提前刷新的 key
+    private final Set<String> refreshing = ConcurrentHashMap.newKeySet();
+
+    // lockKey -> 等待这把锁释放的请求, 收到释放广播时完成
+    private final ConcurrentHashMap<String, CompletableFuture<Void>> lockWaiters = new ConcurrentHashMap<>();
+
     public CacheClient(StringRedisTemplate stringRedisTemplate) {
         this.stringRedisTemplate = stringRedisTemplate;
     }
 
+    @PostConstruct
+    public void init() {
+        Gauge.builder("cache.hit.ratio", this, c -> ratio(c.l2Hits.sum(), c.l2Misses.sum()))
+                .tag("tier", "l2").description("Redis 缓存命中率(包括空值)").register(meterRegistry);
+        hotKeyDetector.onDemote(hotTier::remove);
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            String key = new String(message.getBody(), StandardCharsets.UTF_8);
+            hotTier.remove(key);
+            if (l1 != null) {
+                l1.invalidate(key);
+            }
+        }, ChannelTopic.of(CACHE_INVALIDATE_CHANNEL));
+        redisMessageListenerContainer.addMessageListener((message, pattern) -> {
+            CompletableFuture<Void> waiter = lockWaiters.remove(new String(message.getBody(), StandardCharsets.UTF_8));
+            if (waiter != null) {
+                waiter.complete(null);
+            }
+        }, ChannelTopic.of(CACHE_LOCK_RELEASED_CHANNEL));
+        if (!l1Enabled) {
+            return;
+        }
+        l1 = Caffeine.newBuilder()
+                .maximumSize(l1MaxSize)
+                .expireAfterWrite(Duration.ofMillis(l1Ttl))
+                .recordStats()
+                .build();
+        Gauge.builder("cache.hit.ratio", l1, c -> c.stats().hitRate())
+                .tag("tier", "l1").description("进程内缓存命中率").register(meterRegistry);
+        Gauge.builder("cache.size", l1, Cache::estimatedSize)
+                .tag("tier", "l1").description("进程内缓存条目数").register(meterRegistry);
+    }
+
+    /**
+     * 数据变更后删除缓存: 删除 Redis, 广播给所有节点清除 L1.
+     * 在事务中调用时提交以后再做一次, 防止提交前被其他请求用旧数据回填
+     *
+     * @return Redis 中是否有这个 key
+     */
+    public boolean invalidate(String key) {
+        boolean existed = evict(key);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    evict(key);
+                }
+            });
+        }
+        return existed;
+    }
+
+    /**
+     * Redis 已经写入新值时只需要清除所有节点的 L1
+     */
+    public void invalidateL1(String key) {
+        hotTier.remove(key);
+        if (l1 != null) {
+            l1.invalidate(key);
+        }
+        stringRedisTemplate.convertAndSend(CACHE_INVALIDATE_CHANNEL, key);
+    }
+
+    private boolean evict(String key) {
+        Boolean deleted = stringRedisTemplate.delete(key);
+        invalidateL1(key);
+        return Boolean.TRUE.equals(deleted);
+    }
+
+    /**
+     * 记录一次访问并查本地: 热点 key 查热点副本, 其余查 L1, 本地没有时交给 loader
+     * <p>loader 是当前缓存模式从 Redis 读取的流程, Redis 未命中时按该模式重建, 不直接查数据库.
+     * 刚提升的热点还没有副本时用 loader 加载(本节点合并成一次); 副本到期后后台用 loader 刷新, 期间返回旧值</p>
+     *
+     * @param loader 为 null 时只查本地, 未命中返回 null
+     */
+    private <R> R getHotOrL1(String key, Class<R> clazz, Supplier<R> loader) {
+        hotKeyDetector.record(key);
+        if (!hotKeyDetector.isHot(key)) {
+            R cached = getL1(key, clazz);
+            return cached != null || loader == null ? cached : loader.get();
+        }
+        HotEntry entry = hotTier.get(key);
+        if (entry == null) {
+            if (loader == null) {
+                return getL1(key, clazz);
+            }
+            R r = singleFlight(HOT_FLIGHT_PREFIX + key, clazz, loader);
+            if (r != null) {
+                hotTier.put(key, new HotEntry(r, System.currentTimeMillis() + hotRefresh));
+            }
+            return r;
+        }
+        if (!clazz.isInstance(entry.value())) {
+            return null;
+        }
+        if (entry.refreshAt() <= System.currentTimeMillis() && loader != null && refreshing.add(HOT_FLIGHT_PREFIX + key)) {
+            CACHE_REBUILD_EXECUTOR.submit(() -> {
+                try {
+                    R r = loader.get();
+                    if (r != null && hotKeyDetector.isHot(key)) {
+                        hotTier.put(key, new HotEntry(r, System.currentTimeMillis() + hotRefresh));
+                    } else {
+                        hotTier.remove(key);
+                    }
+                } catch (Exception e) {
+                    log.error("刷新热点副本失败: {}", key, e);
+                } finally {
+                    refreshing.remove(HOT_FLIGHT_PREFIX + key);
+                }
+            });
+        }
+        return clazz.cast(entry.value());
+    }
+
+    /**
+     * 查 L1, 未开启或未命中返回 null
+     */
+    private <R> R getL1(String key, Class<R> clazz) {
+        if (l1 == null) {
+            return null;
+        }
+        Object value = l1.getIfPresent(key);
+        return clazz.isInstance(value) ? clazz.cast(value) : null;
+    }
+
+    /**
+     * 回填 L1, 空值不进入 L1
+     */
+    private void putL1(String key, Object value) {
+        if (l1 != null && value != null) {
+            l1.put(key, value);
+        }
+    }
+
+    /**
+     * 查 Redis 并统计 L2 命中率
+     */
+    private String getL2(String key) {
+        String json = stringRedisTemplate.opsForValue().get(key);
+        (json != null ? l2Hits : l2Misses).increment();
+        return json;
+    }
+
+    private static double ratio(long hits, long misses) {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
     public void setWithTTL(String key, Object value, Long time, TimeUnit timeUnit) {
         stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(value), time, timeUnit);
     }
@@ -48,6 +271,20 @@ public class CacheClient {
         stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData));
     }
 
+    /**
+     * 写入 XFetch 缓存: 数据 + 逻辑过期时间 + 重建耗时, Redis 过期时间取逻辑过期时间的 2 倍,
+     * 逻辑过期以后的一段时间内仍能读到重建耗时
+     *
+     * @param deltaMillis 重建这条数据花了多少毫秒
+     */
+    public void setWithXFetch(String key, Object value, long deltaMillis, Long time, TimeUnit timeUnit) {
+        RedisData redisData = new RedisData();
+        redisData.setData(value);
+        redisData.setExpireTime(LocalDateTime.now().plusNanos(timeUnit.toNanos(time)));
+        redisData.setDelta(deltaMillis);
+        stringRedisTemplate.opsForValue().set(key, JSONUtil.toJsonStr(redisData), time * 2, timeUnit);
+    }
+
     /**
      * 防止大量针对空数据的查询导致的缓存穿透(Cache Penetration)
      *
@@ -61,10 +298,17 @@ public class CacheClient {
      */
     public <R, ID> R getAvoidPenetrationUsingNullObject(String keyPrefix, ID id, Class<R> clazz, Function<ID, R> dbFallback) {
         String entityKey = keyPrefix + id;
-        String jsonStr = stringRedisTemplate.opsForValue().get(entityKey);
+        //TODO 0. 先查进程内缓存
+        return getHotOrL1(entityKey, clazz, () -> loadUsingNullObject(entityKey, id, clazz, dbFallback));
+    }
+
+    private <R, ID> R loadUsingNullObject(String entityKey, ID id, Class<R> clazz, Function<ID, R> dbFallback) {
+        String jsonStr = getL2(entityKey);
         //TODO 1. 缓存命中真实数据, 直接返回数据
         if (StrUtil.isNotBlank(jsonStr)) {
-            return JSONUtil.toBean(jsonStr, clazz);
+            R r = JSONUtil.toBean(jsonStr, clazz);
+            putL1(entityKey, r);
+            return r;
         }
         //TODO 2. 缓存命中空数据, 返回null数据
         if (jsonStr != null) {
@@ -80,6 +324,7 @@ public class CacheClient {
         //TODO 5. 数据库存在,在redis建立缓存 并返回数据
         String jsonStrCache = JSONUtil.toJsonStr(dataBaseResult);
         setWithTTL(entityKey, jsonStrCache, CACHE_DATA_TTL, TimeUnit.MINUTES);
+        putL1(entityKey, dataBaseResult);
         return dataBaseResult;
     }
 
@@ -98,7 +343,12 @@ public class CacheClient {
     public <R, ID> R getAvoidHotSpotInvalidUsingLogicalExpire(String keyPrefix, ID id, Class<R> clazz, Function<ID, R> dbFallback) {
         String entityKey = keyPrefix + id;
         String lockKey = keyPrefix.replace("cache:", "lock:") + id;
-        String jsonStr = stringRedisTemplate.opsForValue().get(entityKey);
+        // L1 的过期时间比逻辑过期短, 命中时直接返回; 重建完成后由 L1 过期带回新数据
+        return getHotOrL1(entityKey, clazz, () -> loadUsingLogicalExpire(entityKey, lockKey, id, clazz, dbFallback));
+    }
+
+    private <R, ID> R loadUsingLogicalExpire(String entityKey, String lockKey, ID id, Class<R> clazz, Function<ID, R> dbFallback) {
+        String jsonStr = getL2(entityKey);
         //TODO 0. 缓存未命中(一般不可能,因为热点数据要提前预热好)
         if (StrUtil.isBlank(jsonStr)) {
             return null;
@@ -108,6 +358,7 @@ public class CacheClient {
         R r = JSONUtil.toBean((JSONObject) redisData.getData(), clazz);
         //TODO 1.5 未过期就直接返回
         if (redisData.getExpireTime().isAfter(LocalDateTime.now())) {
+            putL1(entityKey, r);
             return r;
         }
         //TODO 2. 已过期
@@ -131,7 +382,8 @@ public class CacheClient {
 
     /**
      * <div>使用互斥锁(Mutex)防止热点数据过期造成<span style="font-weight: bold">缓存击穿</span>(Hotspot Invalid) <div/>
-     * <div>缓存未命中则尝试获取互斥锁进行缓存重建. 获取失败则一直按照 递归调用,查缓存,抢锁,递归调用的顺序进行<div/>
+     * <div>缓存未命中时, 本节点同一个 key 的并发请求合并成一次加载(single-flight), 这一次加载去抢互斥锁重建缓存;
+     * 抢不到锁的等待锁释放的广播, 然后重新查缓存<div/>
      * 使用缓存空对象防止<span style="font-weight: bold">缓存穿透</span>
      *
      * @param <R>        数据的类型泛型
@@ -146,50 +398,188 @@ public class CacheClient {
         //TODO 0. Redis数据结构：cache:shop:key+id 对应 一条Json数据,
         String entityKey = keyPrefix + id;
         String lockKey = keyPrefix.replace("cache", "lock") + id;
+        //TODO 0.5 先查进程内缓存
+        return getHotOrL1(entityKey, clazz, () -> loadUsingMutex(entityKey, lockKey, id, clazz, dbFallback));
+    }
+
+    private <R, ID> R loadUsingMutex(String entityKey, String lockKey, ID id, Class<R> clazz, Function<ID, R> dbFallback) {
         //TODO 1. 先到Redis中按照ID进行查询
-        String json = stringRedisTemplate.opsForValue().get(entityKey);
+        String json = getL2(entityKey);
         //TODO 2. redis查到直接返回对象
         if (StrUtil.isNotBlank(json)) {
-            return JSONUtil.toBean(json, clazz);
+            R r = JSONUtil.toBean(json, clazz);
+            putL1(entityKey, r);
+            return r;
         }
         //TODO 2.5. 查到如果不是null值而是空字符串，返回null对象
         if (json != null) {
             return null;
         }
-        R dbResult;
-        //TODO 3 尝试获取互斥锁
-        try {
-            if (!tryLock(lockKey)) {
-                //没获取到,休眠然后递归进行方法的重试
-                //TODO 3.5 为什么是递归执行原始方法?
-                // 如果是循环获取锁,可能会导致这个线程一开始没命中,想要更新缓存
-                // 获取互斥锁失败以后,一直想要更新缓存,但是别人占用锁就是在更新缓存啊!
-                // 所以拘泥于反复争抢互斥锁,是没有意义的,重要的是缓存命中与否
-                Thread.sleep(30);
-                return getAvoidHotspotInvalidUsingMutex(keyPrefix, id, clazz, dbFallback);
-            }
-            //TODO 4.1 查数据库
-            dbResult = dbFallback.apply(id);
-            //模拟延迟
-            Thread.sleep(200);
-            if (dbResult == null) {
-                //TODO 4.2 数据库查不到则向redis写入一个空值, 返回null对象
-                stringRedisTemplate.opsForValue().set(entityKey, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
-//            httpServletResponse.setStatus(HttpServletResponse.SC_NOT_FOUND);
-                return null;
+        //TODO 3 同一个 JVM 内并发未命中的请求共享一次加载, 只有这一次加载去抢 Redis 互斥锁
+        return singleFlight(entityKey, clazz, () -> loadWithMutex(entityKey, lockKey, id, clazz, dbFallback));
+    }
+
+    /**
+     * 同一个 key 的并发调用只执行一次 loader, 其余调用等待并共享它的结果
+     */
+    private <R> R singleFlight(String key, Class<R> clazz, Supplier<R> loader) {
+        CompletableFuture<Object> flight = new CompletableFuture<>();
+        CompletableFuture<Object> leader = inflight.putIfAbsent(key, flight);
+        if (leader != null) {
+            try {
+                return clazz.cast(leader.get(LOCK_TTL * 2, TimeUnit.SECONDS));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException | TimeoutException e) {
+                throw new RuntimeException(e);
             }
-            //TODO 4.3 把查到的数据写到redis中，然后返回,读操作，更新缓存设置过期时间
-            String jsonStrToCache = JSONUtil.toJsonStr(JSONUtil.parseObj(dbResult, false));
-            stringRedisTemplate.opsForValue().set(entityKey, jsonStrToCache, CACHE_DATA_TTL, TimeUnit.MINUTES);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
+        }
+        try {
+            R result = loader.get();
+            flight.complete(result);
+            return result;
+        } catch (RuntimeException e) {
+            flight.completeExceptionally(e);
+            throw e;
         } finally {
-            //TODO 5 释放锁
-            releaseLock(lockKey);
+            inflight.remove(key, flight);
+        }
+    }
+
+    /**
+     * XFetch 概率提前刷新: 缓存中记录上次重建耗时 delta 和逻辑过期时间 expiry,
+     * 每次读取时若 now - delta * beta * ln(rand) >= expiry 就在后台重建, 越接近过期、重建越慢, 提前刷新的概率越大.
+     * 热点 key 在过期之前就被刷新, 读请求不加锁也不阻塞; 逻辑过期以后还没被刷新(冷 key)或者未命中时同步重建,
+     * 本节点内合并成一次加载, 不返回过期数据
+     *
+     * @param <R>        数据的类型泛型
+     * @param <ID>       ID的类型泛型
+     * @param keyPrefix  数据在redis的key前缀
+     * @param id         ID
+     * @param clazz      数据的类型
+     * @param dbFallback 建立缓存要进行的数据库操作
+     * @return 实体数据
+     */
+    public <R, ID> R getUsingXFetch(String keyPrefix, ID id, Class<R> clazz, Function<ID, R> dbFallback) {
+        String entityKey = keyPrefix + id;
+        return getHotOrL1(entityKey, clazz, () -> loadUsingXFetch(entityKey, id, clazz, dbFallback));
+    }
+
+    private <R, ID> R loadUsingXFetch(String entityKey, ID id, Class<R> clazz, Function<ID, R> dbFallback) {
+        String jsonStr = getL2(entityKey);
+        //TODO 1. 未命中, 同步重建
+        if (jsonStr == null) {
+            return singleFlight(entityKey, clazz, () -> recompute(entityKey, id, dbFallback));
+        }
+        //TODO 2. 空值
+        if (StrUtil.isBlank(jsonStr)) {
+            return null;
+        }
+        RedisData redisData = JSONUtil.toBean(jsonStr, RedisData.class);
+        long now = System.currentTimeMillis();
+        //TODO 3. 已经逻辑过期, 或者不是 XFetch 格式(其他写入方直接写的实体 JSON, 没有过期时间), 同步重建
+        if (redisData.getExpireTime() == null || redisData.getData() == null
+                || now >= redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli()) {
+            return singleFlight(entityKey, clazz, () -> recompute(entityKey, id, dbFallback));
         }
+        long expiry = redisData.getExpireTime().atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        R r = JSONUtil.toBean((JSONObject) redisData.getData(), clazz);
+        //TODO 4. 按概率提前刷新, 本节点同一个 key 同时只有一个后台刷新
+        long delta = redisData.getDelta() == null ? 0 : redisData.getDelta();
+        double gap = -delta * xfetchBeta * Math.log(1 - ThreadLocalRandom.current().nextDouble());
+        if (now + gap >= expiry && refreshing.add(entityKey)) {
+            CACHE_REBUILD_EXECUTOR.submit(() -> {
+                try {
+                    recompute(entityKey, id, dbFallback);
+                } catch (Exception e) {
+                    log.error("提前刷新缓存失败: {}", entityKey, e);
+                } finally {
+                    refreshing.remove(entityKey);
+                }
+            });
+        }
+        putL1(entityKey, r);
+        return r;
+    }
+
+    /**
+     * 查数据库重建 XFetch 缓存, 记录本次重建耗时
+     */
+    private <R, ID> R recompute(String entityKey, ID id, Function<ID, R> dbFallback) {
+        long begin = System.nanoTime();
+        R dbResult = dbFallback.apply(id);
+        if (dbResult == null) {
+            setWithTTL(entityKey, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+            return null;
+        }
+        setWithXFetch(entityKey, dbResult, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - begin),
+                CACHE_DATA_TTL, TimeUnit.MINUTES);
+        putL1(entityKey, dbResult);
         return dbResult;
     }
 
+    /**
+     * 抢到互斥锁的节点查数据库重建缓存, 其余节点等待锁释放的广播后重新查 Redis, 不再固定休眠轮询.
+     * 广播可能丢失, 等待最多一个锁有效期, 超过 2 倍锁有效期仍未拿到结果时直接查数据库
+     */
+    private <R, ID> R loadWithMutex(String entityKey, String lockKey, ID id, Class<R> clazz, Function<ID, R> dbFallback) {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(LOCK_TTL * 2);
+        while (System.nanoTime() < deadline) {
+            // 先登记等待, 再抢锁, 抢锁失败和收到广播之间不会漏掉通知
+            CompletableFuture<Void> released = lockWaiters.computeIfAbsent(lockKey, k -> new CompletableFuture<>());
+            if (tryLock(lockKey)) {
+                try {
+                    //TODO 4.0 拿到锁以后再查一次 Redis, 可能刚被其他节点重建
+                    String json = stringRedisTemplate.opsForValue().get(entityKey);
+                    if (json != null) {
+                        return decode(entityKey, json, clazz);
+                    }
+                    //TODO 4.1 查数据库
+                    R dbResult = dbFallback.apply(id);
+                    if (dbResult == null) {
+                        //TODO 4.2 数据库查不到则向redis写入一个空值, 返回null对象
+                        stringRedisTemplate.opsForValue().set(entityKey, "", CACHE_NULL_TTL, TimeUnit.MINUTES);
+                        return null;
+                    }
+                    //TODO 4.3 把查到的数据写到redis中，然后返回,读操作，更新缓存设置过期时间
+                    String jsonStrToCache = JSONUtil.toJsonStr(JSONUtil.parseObj(dbResult, false));
+                    stringRedisTemplate.opsForValue().set(entityKey, jsonStrToCache, CACHE_DATA_TTL, TimeUnit.MINUTES);
+                    putL1(entityKey, dbResult);
+                    return dbResult;
+                } finally {
+                    //TODO 5 释放锁并广播, 唤醒其他节点上等待的请求
+                    releaseLock(lockKey);
+                    stringRedisTemplate.convertAndSend(CACHE_LOCK_RELEASED_CHANNEL, lockKey);
+                }
+            }
+            //TODO 3.5 没抢到锁, 别人正在重建缓存, 等它释放锁以后查缓存
+            try {
+                released.get(LOCK_TTL, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (ExecutionException | TimeoutException ignored) {
+                // 广播丢失或者持有者宕机, 锁过期后重新抢
+            }
+            String json = stringRedisTemplate.opsForValue().get(entityKey);
+            if (json != null) {
+                return decode(entityKey, json, clazz);
+            }
+        }
+        log.warn("等待缓存重建超时, 直接查询数据库: {}", entityKey);
+        return dbFallback.apply(id);
+    }
+
+    private <R> R decode(String entityKey, String json, Class<R> clazz) {
+        if (StrUtil.isBlank(json)) {
+            return null;
+        }
+        R r = JSONUtil.toBean(json, clazz);
+        putL1(entityKey, r);
+        return r;
+    }
+
     /**
      * 尝试获取互斥锁
      *
@@ -210,16 +600,111 @@ public class CacheClient {
         stringRedisTemplate.delete(key);
     }
 
+    /**
+     * 批量查询: 一次 MGET 读缓存, 只把缺失的ID交给数据库批量查询, 再用一次管道写回,
+     * 一页数据两次 Redis 往返. 与 {@link #getAvoidPenetrationUsingNullObject} 一样, 数据库中不存在的ID写入空值
+     *
+     * @param keyPrefix  数据在redis的key前缀
+     * @param ids        ID集合
+     * @param clazz      数据类型
+     * @param dbFallback 按一批ID查询数据库, 返回 ID -> 实体, 不存在的ID不放入
+     * @param <R>        数据类型
+     * @param <ID>       ID类型
+     * @return 按 ids 顺序排列的 ID -> 实体, 不存在的ID不包含在内
+     */
+    public <R, ID> Map<ID, R> getAll(String keyPrefix, Collection<ID> ids, Class<R> clazz,
+                                     Function<Collection<ID>, Map<ID, R>> dbFallback) {
+        Map<ID, R> found = new HashMap<>(ids.size() * 2);
+        //TODO 1. 先查进程内缓存
+        List<ID> toRead = new ArrayList<>(ids.size());
+        for (ID id : new LinkedHashSet<>(ids)) {
+            R cached = getHotOrL1(keyPrefix + id, clazz, null);
+            if (cached != null) {
+                found.put(id, cached);
+            } else {
+                toRead.add(id);
+            }
+        }
+        //TODO 2. 一次 MGET 读 Redis
+        List<ID> missing = new ArrayList<>();
+        if (!toRead.isEmpty()) {
+            List<String> values = stringRedisTemplate.opsForValue()
+                    .multiGet(toRead.stream().map(id -> keyPrefix + id).toList());
+            for (int i = 0; i < toRead.size(); i++) {
+                String json = values == null ? null : values.get(i);
+                (json != null ? l2Hits : l2Misses).increment();
+                if (StrUtil.isNotBlank(json)) {
+                    R r = JSONUtil.toBean(json, clazz);
+                    putL1(keyPrefix + toRead.get(i), r);
+                    found.put(toRead.get(i), r);
+                } else if (json == null) {
+                    // 空字符串是空值缓存, 不再查数据库
+                    missing.add(toRead.get(i));
+                }
+            }
+        }
+        //TODO 3. 缺失的ID一次查数据库, 查到的和查不到的(空值)用一次管道写回
+        if (!missing.isEmpty()) {
+            Map<ID, R> loaded = dbFallback.apply(missing);
+            stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+                StringRedisConnection conn = (StringRedisConnection) connection;
+                for (ID id : missing) {
+                    R r = loaded.get(id);
+                    if (r == null) {
+                        conn.setEx(keyPrefix + id, TimeUnit.MINUTES.toSeconds(CACHE_NULL_TTL), "");
+                    } else {
+                        conn.setEx(keyPrefix + id, TimeUnit.MINUTES.toSeconds(CACHE_DATA_TTL), JSONUtil.toJsonStr(r));
+                    }
+                }
+                return null;
+            });
+            for (ID id : missing) {
+                R r = loaded.get(id);
+                if (r != null) {
+                    putL1(keyPrefix + id, r);
+                    found.put(id, r);
+                }
+            }
+        }
+        //TODO 4. 按请求的顺序返回
+        Map<ID, R> result = new LinkedHashMap<>(found.size() * 2);
+        for (ID id : ids) {
+            R r = found.get(id);
+            if (r != null) {
+                result.put(id, r);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * 批量查询, 先用布隆过滤器去掉一定不存在的ID, 其余同 {@link #getAll}
+     */
+    public <R> Map<Long, R> getAllUsingBloom(String keyPrefix, Collection<Long> ids, Class<R> clazz,
+                                             Function<Collection<Long>, Map<Long, R>> dbFallback) {
+        List<Long> mightExist = ids.stream().filter(bloomFilter::mightContain).toList();
+        if (mightExist.size() < ids.size()) {
+            log.warn("{} 个ID不在布隆过滤器中", ids.size() - mightExist.size());
+        }
+        return getAll(keyPrefix, mightExist, clazz, dbFallback);
+    }
+
     public <R, ID> R getAvoidPenetrationUsingBloom(String keyPrefix, ID id, Class<R> clazz, Function<ID, R> dbFallback) {
         if (!bloomFilter.mightContain((Long) id)) {
             log.warn("shop [{}] might not contained in filter", id);
             return null;
         }
         String entityKey = keyPrefix + id;
-        String jsonStr = stringRedisTemplate.opsForValue().get(entityKey);
+        return getHotOrL1(entityKey, clazz, () -> loadUsingBloom(entityKey, id, clazz, dbFallback));
+    }
+
+    private <R, ID> R loadUsingBloom(String entityKey, ID id, Class<R> clazz, Function<ID, R> dbFallback) {
+        String jsonStr = getL2(entityKey);
         //TODO 1. 缓存命中真实数据, 直接返回数据
         if (StrUtil.isNotBlank(jsonStr)) {
-            return JSONUtil.toBean(jsonStr, clazz);
+            R r = JSONUtil.toBean(jsonStr, clazz);
+            putL1(entityKey, r);
+            return r;
         }
 //        if (jsonStr != null) {
 //            return null;
@@ -234,6 +719,7 @@ public class CacheClient {
         //TODO 5. 数据库存在,在redis建立缓存 并返回数据
         String jsonStrCache = JSONUtil.toJsonStr(dataBaseResult);
         setWithTTL(entityKey, jsonStrCache, CACHE_DATA_TTL, TimeUnit.MINUTES);
+        putL1(entityKey, dataBaseResult);
         return dataBaseResult;
     }
 
@@ -0,0 +1,211 @@
+package com.hmdp.utils;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.Consumer;
+
+/**
+ * <p>
+ * 热点 key 探测: 带衰减的 count-min sketch + top-K
+ * </p>
+ * 每次(或每 sample 次采样一次)缓存访问在 sketch 的 depth 行里各加一, 估计值取各行最小值.
+ * 估计值超过 threshold 的 key 立即提升为热点, 每个衰减周期所有计数减半, 所以估计值近似最近两个周期的访问次数.
+ * 衰减时重新排出 top-K, 估计值跌到 threshold/2 以下(滞后, 避免抖动)或者挤出 top-K 的 key 降级并通知监听者.
+ * 超过阈值的 key 不受候选容量限制, 热点一定参与排名, 不会因为没进候选集而在每次衰减时被误降级
+ *
+ * @author scatteredream
+ */
+@Slf4j
+@Component
+public class HotKeyDetector {
+
+    @Value("${custom.hotKey.width}")
+    private Integer width;
+
+    @Value("${custom.hotKey.depth}")
+    private Integer depth;
+
+    @Value("${custom.hotKey.sample}")
+    private Integer sample;
+
+    @Value("${custom.hotKey.threshold}")
+    private Integer threshold;
+
+    @Value("${custom.hotKey.topK}")
+    private Integer topK;
+
+    @Value("${custom.hotKey.decayInterval}")
+    private Long decayInterval;
+
+    private AtomicIntegerArray[] rows;
+
+    private int[] seeds;
+
+    private int shift;
+
+    // 估计值超过 threshold/4 的候选 key -> 最近一次估计值, 一般最多 4 * topK 个, 超过阈值的 key 总是收入, 衰减时裁剪
+    private final ConcurrentHashMap<String, Integer> candidates = new ConcurrentHashMap<>();
+
+    // 当前热点 key -> 提升时间
+    private final ConcurrentHashMap<String, Long> hot = new ConcurrentHashMap<>();
+
+    private final List<Consumer<String>> demoteListeners = new CopyOnWriteArrayList<>();
+
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * 热点 key 及其估计访问次数
+     */
+    public record HotKey(String key, int estimate, long hotSince) {
+    }
+
+    @PostConstruct
+    public void init() {
+        // 宽度取 2 的幂, 用位运算定位
+        int w = Integer.highestOneBit(Math.max(2, width - 1)) << 1;
+        shift = Integer.numberOfLeadingZeros(w) + 1;
+        rows = new AtomicIntegerArray[depth];
+        seeds = new int[depth];
+        Random random = new Random(depth);
+        for (int i = 0; i < depth; i++) {
+            rows[i] = new AtomicIntegerArray(w);
+            seeds[i] = random.nextInt() | 1;
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "hot-key-decay"));
+        scheduler.scheduleAtFixedRate(this::decay, decayInterval, decayInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * 记录一次访问
+     */
+    public void record(String key) {
+        if (sample > 1 && ThreadLocalRandom.current().nextInt(sample) != 0) {
+            return;
+        }
+        int estimate = Integer.MAX_VALUE;
+        int h = spread(key.hashCode());
+        for (int i = 0; i < rows.length; i++) {
+            estimate = Math.min(estimate, rows[i].addAndGet(index(h, i), sample));
+        }
+        if (estimate < threshold / 4) {
+            return;
+        }
+        if (estimate >= threshold || candidates.size() < 4 * topK || candidates.containsKey(key)) {
+            candidates.put(key, estimate);
+        }
+        //TODO 超过阈值立即提升, 不等下一个衰减周期
+        if (estimate >= threshold && hot.size() < topK && hot.putIfAbsent(key, System.currentTimeMillis()) == null) {
+            log.info("发现热点 key {}: 估计访问 {} 次", key, estimate);
+        }
+    }
+
+    public boolean isHot(String key) {
+        return hot.containsKey(key);
+    }
+
+    /**
+     * 注册降级监听, 热点 key 降级时调用
+     */
+    public void onDemote(Consumer<String> listener) {
+        demoteListeners.add(listener);
+    }
+
+    /**
+     * 当前热点 key, 按估计访问次数从高到低
+     */
+    public List<HotKey> hotKeys() {
+        List<HotKey> keys = new ArrayList<>(hot.size());
+        hot.forEach((key, since) -> keys.add(new HotKey(key, estimate(key), since)));
+        keys.sort(Comparator.comparingInt(HotKey::estimate).reversed());
+        return keys;
+    }
+
+    /**
+     * 估计一个 key 的访问次数
+     */
+    public int estimate(String key) {
+        int estimate = Integer.MAX_VALUE;
+        int h = spread(key.hashCode());
+        for (int i = 0; i < rows.length; i++) {
+            estimate = Math.min(estimate, rows[i].get(index(h, i)));
+        }
+        return estimate;
+    }
+
+    private void decay() {
+        try {
+            //TODO 1. 所有计数减半
+            for (AtomicIntegerArray row : rows) {
+                for (int i = 0; i < row.length(); i++) {
+                    row.getAndUpdate(i, c -> c >>> 1);
+                }
+            }
+            //TODO 2. 重新估计候选 key, 小顶堆保留估计值最大的 topK 个
+            PriorityQueue<Map.Entry<String, Integer>> heap = new PriorityQueue<>(Map.Entry.comparingByValue());
+            for (String key : candidates.keySet()) {
+                int estimate = estimate(key);
+                if (estimate < threshold / 4) {
+                    candidates.remove(key);
+                    continue;
+                }
+                candidates.put(key, estimate);
+                heap.offer(Map.entry(key, estimate));
+                if (heap.size() > topK) {
+                    heap.poll();
+                }
+            }
+            Set<String> top = new HashSet<>();
+            heap.forEach(entry -> top.add(entry.getKey()));
+            //TODO 3. 候选集超出容量时去掉估计值最小的非热点 key
+            int excess = candidates.size() - 4 * topK;
+            if (excess > 0) {
+                candidates.entrySet().stream()
+                        .filter(entry -> !hot.containsKey(entry.getKey()))
+                        .sorted(Map.Entry.comparingByValue())
+                        .limit(excess)
+                        .map(Map.Entry::getKey)
+                        .toList()
+                        .forEach(candidates::remove);
+            }
+            //TODO 4. 参与了排名但挤出 top-K, 或者跌到 threshold/2 以下的热点降级
+            for (String key : hot.keySet()) {
+                boolean ranked = candidates.containsKey(key);
+                if ((ranked && !top.contains(key)) || estimate(key) < threshold / 2) {
+                    hot.remove(key);
+                    demoteListeners.forEach(listener -> listener.accept(key));
+                    log.info("热点 key {} 降级", key);
+                }
+            }
+        } catch (Exception e) {
+            log.error("热点 key 衰减失败", e);
+        }
+    }
+
+    private int index(int h, int row) {
+        // 乘法哈希取高位
+        return (h * seeds[row]) >>> shift;
+    }
+
+    private static int spread(int h) {
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        return h ^ h >>> 13;
+    }
+}
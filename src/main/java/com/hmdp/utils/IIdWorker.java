@@ -0,0 +1,32 @@
+package com.hmdp.utils;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+
+/**
+ * 全局ID生成器, 高 32 位是从 {@link #BEGIN_TIMESTAMP} 起的秒数, 所有实现都保持这一布局,
+ * 按时间分桶和按时间截取ID范围的代码不需要关心ID来自哪个实现
+ */
+public interface IIdWorker {
+    long BEGIN_TIMESTAMP = 1730574577L;
+    int COUNT_BITS = 32;
+
+    /**
+     * @param keyPrefix 业务前缀, 只有按前缀分别计数的实现会用到
+     */
+    long nextId(String keyPrefix);
+
+    /**
+     * ID生成时刻距 {@link #BEGIN_TIMESTAMP} 的秒数
+     */
+    static long secondsOf(long id) {
+        return id >>> COUNT_BITS;
+    }
+
+    /**
+     * 某一时刻生成的最小ID, 早于这一时刻生成的ID都比它小
+     */
+    static long minIdAt(LocalDateTime time) {
+        return (time.toEpochSecond(ZoneOffset.UTC) - BEGIN_TIMESTAMP) << COUNT_BITS;
+    }
+}
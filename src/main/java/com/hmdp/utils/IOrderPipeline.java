@@ -0,0 +1,23 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+
+/**
+ * 秒杀订单从通过资格判断到落库之间的管道, 由 custom.seckill.pipeline 选择实现
+ */
+public interface IOrderPipeline {
+    /**
+     * 提交一个已经通过资格判断的订单, 不等待落库
+     *
+     * @return 管道已满等无法接收时返回 false, 调用方需要回滚下单资格
+     */
+    boolean submit(VoucherOrder order);
+
+    /**
+     * 订单是否由下单资格脚本直接写入管道(扣库存和入队原子完成)
+     * <p>是的话订单ID要在执行脚本之前生成, submit 不再重复入队</p>
+     */
+    default boolean appendsInScript() {
+        return false;
+    }
+}
@@ -0,0 +1,16 @@
+package com.hmdp.utils;
+
+/**
+ * 秒杀订单状态存储, 条目在保留时间以后自动过期
+ */
+public interface IOrderStatusStore {
+    /**
+     * PENDING 不会覆盖已有的状态: 消费者可能先于下单线程写入最终结果
+     */
+    void put(long orderId, OrderStatus status);
+
+    /**
+     * @return 订单状态, 不存在或已过期返回 null
+     */
+    OrderStatus get(long orderId);
+}
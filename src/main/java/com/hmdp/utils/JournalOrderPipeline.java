@@ -0,0 +1,279 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.stream.Stream;
+
+/**
+ * <p>
+ * 不依赖 broker 的订单管道: 订单追加写入本地内存映射的预写日志, 进程内的消费线程顺着日志批量落库
+ * </p>
+ * 日志按固定大小分段(journal-N.log), 每条记录 32 字节: orderId, userId, voucherId, MAGIC.
+ * MAGIC 最后写入, 只有带 MAGIC 的记录才算写完整. 写指针不断追加新的分段, 读指针跟在后面,
+ * 读指针所在分段之前的分段消费完就删除, 分段不会回绕复用. 读指针(已落库的位置)保存在 checkpoint 文件中,
+ * 重启后从 checkpoint 重放到写指针. 消费过程中的异常不会让消费线程退出, 回到 checkpoint 重新读取.
+ * 落库失败时的重试和死信处理与 RabbitMQListener 一致: 重试 3 次后回滚 Redis 并记录失败订单
+ *
+ * @author scatteredream
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "custom.seckill.pipeline", havingValue = "journal")
+public class JournalOrderPipeline implements IOrderPipeline {
+    private static final int RECORD_BYTES = 32;
+    private static final int MAGIC = 0x5EC10001;
+    private static final int MAX_RETRY = 3;
+
+    @Value("${custom.seckill.journalDir}")
+    private String journalDir;
+
+    @Value("${custom.seckill.journalSegmentSize}")
+    private Integer segmentSize;
+
+    @Value("${custom.seckill.batchSize}")
+    private Integer batchSize;
+
+    @Resource
+    @Lazy
+    private IVoucherOrderService voucherOrderService;
+
+    private Path dir;
+
+    // 写指针, 只在 synchronized(this) 内修改
+    private MappedByteBuffer writeBuffer;
+    private int writeSegment;
+    private int writeOffset;
+
+    // 已经写完整的位置 segment << 32 | offset, 消费线程读到这里为止
+    private volatile long committed;
+
+    private MappedByteBuffer checkpointBuffer;
+
+    private Thread consumer;
+
+    private volatile boolean running = true;
+
+    @PostConstruct
+    public void init() throws IOException {
+        segmentSize = segmentSize / RECORD_BYTES * RECORD_BYTES;
+        dir = Paths.get(journalDir);
+        Files.createDirectories(dir);
+        checkpointBuffer = map(dir.resolve("checkpoint"), 8);
+        long checkpoint = checkpointBuffer.getLong(0);
+        //TODO 1. 找到最后一个分段, 扫描出第一条不完整的记录作为写指针
+        writeSegment = Math.max(segmentOf(checkpoint), lastSegment());
+        writeBuffer = map(segmentPath(writeSegment), segmentSize);
+        writeOffset = 0;
+        while (writeOffset + RECORD_BYTES <= segmentSize && writeBuffer.getInt(writeOffset + 24) == MAGIC) {
+            writeOffset += RECORD_BYTES;
+        }
+        committed = position(writeSegment, writeOffset);
+        if (committed != checkpoint) {
+            log.info("订单日志从 [{}:{}] 重放到 [{}:{}]", segmentOf(checkpoint), offsetOf(checkpoint),
+                    writeSegment, writeOffset);
+        }
+        //TODO 2. 启动消费线程, 从 checkpoint 开始消费
+        consumer = new Thread(() -> consumeLoop(checkpoint), "order-journal-consumer");
+        consumer.start();
+    }
+
+    @PreDestroy
+    public void destroy() throws InterruptedException {
+        running = false;
+        LockSupport.unpark(consumer);
+        consumer.join(TimeUnit.SECONDS.toMillis(10));
+        synchronized (this) {
+            writeBuffer.force();
+        }
+        checkpointBuffer.force();
+    }
+
+    @Override
+    public boolean submit(VoucherOrder order) {
+        if (!consumer.isAlive()) {
+            // 消费线程意外退出, 写进日志也没有人落库, 让调用方回滚
+            log.error("订单日志消费线程已经退出, 拒绝订单: {}", order);
+            return false;
+        }
+        synchronized (this) {
+            try {
+                if (writeOffset + RECORD_BYTES > segmentSize) {
+                    writeBuffer.force();
+                    writeBuffer = map(segmentPath(writeSegment + 1), segmentSize);
+                    writeSegment++;
+                    writeOffset = 0;
+                }
+            } catch (IOException e) {
+                log.error("订单日志分段失败: {}", order, e);
+                return false;
+            }
+            writeBuffer.putLong(writeOffset, order.getId())
+                    .putLong(writeOffset + 8, order.getUserId())
+                    .putLong(writeOffset + 16, order.getVoucherId())
+                    .putInt(writeOffset + 24, MAGIC);
+            writeOffset += RECORD_BYTES;
+            committed = position(writeSegment, writeOffset);
+        }
+        LockSupport.unpark(consumer);
+        return true;
+    }
+
+    private void consumeLoop(long checkpoint) {
+        int segment = segmentOf(checkpoint);
+        int offset = offsetOf(checkpoint);
+        List<VoucherOrder> batch = new ArrayList<>(batchSize);
+        MappedByteBuffer readBuffer = null;
+        while (running || position(segment, offset) < committed) {
+            try {
+                if (readBuffer == null) {
+                    readBuffer = map(segmentPath(segment), segmentSize);
+                }
+                long end = committed;
+                if (position(segment, offset) >= end) {
+                    LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+                    continue;
+                }
+                //TODO 3. 读出一批完整的记录
+                while (batch.size() < batchSize && position(segment, offset) < end) {
+                    if (offset + RECORD_BYTES > segmentSize) {
+                        segment++;
+                        offset = 0;
+                        readBuffer = map(segmentPath(segment), segmentSize);
+                        continue;
+                    }
+                    if (readBuffer.getInt(offset + 24) != MAGIC) {
+                        break;
+                    }
+                    batch.add(new VoucherOrder()
+                            .setId(readBuffer.getLong(offset))
+                            .setUserId(readBuffer.getLong(offset + 8))
+                            .setVoucherId(readBuffer.getLong(offset + 16)));
+                    offset += RECORD_BYTES;
+                }
+                //TODO 4. 落库, 然后推进 checkpoint 并删除已经消费完的分段
+                persist(batch);
+                batch.clear();
+                checkpoint = position(segment, offset);
+                checkpointBuffer.putLong(0, checkpoint);
+                deleteSegmentsBefore(segment);
+            } catch (Exception e) {
+                //TODO 5. 任何异常都不能让消费线程退出: 回到 checkpoint 重读这一批, 已经落库的订单重复处理是幂等的
+                log.error("订单日志消费失败, 从 checkpoint [{}:{}] 重试", segmentOf(checkpoint), offsetOf(checkpoint), e);
+                batch.clear();
+                segment = segmentOf(checkpoint);
+                offset = offsetOf(checkpoint);
+                readBuffer = null;
+                if (!running) {
+                    // 停机时不再重试, 重启后从 checkpoint 重放
+                    return;
+                }
+                LockSupport.parkNanos(TimeUnit.SECONDS.toNanos(1));
+            }
+        }
+    }
+
+    private void persist(List<VoucherOrder> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        try {
+            for (VoucherOrder order : voucherOrderService.createOrderBatch(batch)) {
+                voucherOrderService.setOrderStatus(order.getId(), OrderStatus.SUCCESS);
+            }
+            return;
+        } catch (Exception e) {
+            log.error("批量落库失败, 退化为逐条处理: {} 条", batch.size(), e);
+        }
+        for (VoucherOrder order : batch) {
+            persistWithRetry(order);
+        }
+    }
+
+    /**
+     * 与 RabbitMQListener 相同的语义: 失败重试, 超过最大重试次数进入死信处理
+     */
+    private void persistWithRetry(VoucherOrder order) {
+        for (int retry = 0; retry <= MAX_RETRY; retry++) {
+            try {
+                if (voucherOrderService.createOrder(order)) {
+                    voucherOrderService.setOrderStatus(order.getId(), OrderStatus.SUCCESS);
+                    return;
+                }
+                throw new RuntimeException("数据库处理异常!");
+            } catch (Exception e) {
+                log.error("处理订单失败,准备重试: {}", order, e);
+                LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(100L << retry));
+            }
+        }
+        log.error("订单处理失败，超过最大重试次数: {}  {}", MAX_RETRY, order);
+        voucherOrderService.failOrder(order);
+    }
+
+    private void deleteSegmentsBefore(int segment) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : files.toList()) {
+                int index = segmentIndex(file);
+                if (index >= 0 && index < segment) {
+                    Files.deleteIfExists(file);
+                }
+            }
+        }
+    }
+
+    private int lastSegment() throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.mapToInt(JournalOrderPipeline::segmentIndex).max().orElse(0);
+        }
+    }
+
+    private Path segmentPath(int segment) {
+        return dir.resolve("journal-" + segment + ".log");
+    }
+
+    private static int segmentIndex(Path file) {
+        String name = file.getFileName().toString();
+        if (!name.startsWith("journal-") || !name.endsWith(".log")) {
+            return -1;
+        }
+        return Integer.parseInt(name.substring("journal-".length(), name.length() - ".log".length()));
+    }
+
+    private static MappedByteBuffer map(Path file, int size) throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            return channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+        }
+    }
+
+    private static long position(int segment, int offset) {
+        return (long) segment << 32 | offset;
+    }
+
+    private static int segmentOf(long position) {
+        return (int) (position >>> 32);
+    }
+
+    private static int offsetOf(long position) {
+        return (int) position;
+    }
+}
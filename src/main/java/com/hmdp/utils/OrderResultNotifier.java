@@ -0,0 +1,104 @@
+package com.hmdp.utils;
+
+import com.hmdp.dto.Result;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+import org.springframework.web.context.request.async.DeferredResult;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static com.hmdp.utils.RedisConstants.ORDER_RESULT_CHANNEL;
+
+/**
+ * <p>
+ * 订单结果推送: 客户端挂起一个长轮询请求, 订单成功或失败时立即返回, 代替反复轮询订单状态
+ * </p>
+ * 挂起的请求是 Servlet 异步请求(DeferredResult), 不占用线程, 只在 map 里留一个引用.
+ * 订单结果通过 Redis 发布订阅广播, 哪个节点上挂着这个订单的请求就由哪个节点返回
+ *
+ * @author scatteredream
+ */
+@Slf4j
+@Component
+public class OrderResultNotifier implements MessageListener {
+
+    // orderId -> 等待该订单结果的请求
+    private final Map<Long, Queue<DeferredResult<Result>>> waiters = new ConcurrentHashMap<>();
+
+    @Value("${custom.seckill.waitTimeout}")
+    private Long waitTimeout;
+
+    @Resource
+    private IOrderStatusStore orderStatusStore;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @PostConstruct
+    public void init() {
+        redisMessageListenerContainer.addMessageListener(this, ChannelTopic.of(ORDER_RESULT_CHANNEL));
+    }
+
+    /**
+     * 挂起一个等待订单结果的请求, 超时返回 pending, 客户端再发起下一次等待
+     */
+    public DeferredResult<Result> await(Long orderId) {
+        DeferredResult<Result> deferred = new DeferredResult<>(waitTimeout,
+                () -> Result.ok(OrderStatus.PENDING.getMessage()));
+        // 登记和移除都在 map 的原子操作里进行: 不会加进一个刚被别的请求完成时移除, 或者刚被通知取走的队列
+        waiters.compute(orderId, (id, q) -> {
+            Queue<DeferredResult<Result>> queue = q == null ? new ConcurrentLinkedQueue<>() : q;
+            queue.add(deferred);
+            return queue;
+        });
+        deferred.onCompletion(() -> waiters.computeIfPresent(orderId, (id, q) -> {
+            q.remove(deferred);
+            return q.isEmpty() ? null : q;
+        }));
+        // 先登记再查状态, 状态在广播之前写入, 登记之前已经广播过的结果在这里一定能查到
+        OrderStatus status = orderStatusStore.get(orderId);
+        if (status == null) {
+            deferred.setResult(Result.fail("订单不存在或已过期: " + orderId));
+        } else if (status != OrderStatus.PENDING) {
+            deferred.setResult(Result.ok(status.getMessage()));
+        }
+        return deferred;
+    }
+
+    /**
+     * 订单有了最终结果, 广播给所有节点
+     */
+    public void publish(Long orderId, OrderStatus status) {
+        stringRedisTemplate.convertAndSend(ORDER_RESULT_CHANNEL, orderId + ":" + status.getCode());
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        int split = body.indexOf(':');
+        Long orderId = Long.valueOf(body.substring(0, split));
+        Queue<DeferredResult<Result>> queue = waiters.remove(orderId);
+        if (queue == null) {
+            return;
+        }
+        OrderStatus status = OrderStatus.of(Integer.parseInt(body.substring(split + 1)));
+        for (DeferredResult<Result> deferred : queue) {
+            deferred.setResult(Result.ok(status == null ? null : status.getMessage()));
+        }
+    }
+}
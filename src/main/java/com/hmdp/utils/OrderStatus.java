@@ -3,10 +3,23 @@ package com.hmdp.utils;
 import lombok.Getter;
 
 public enum OrderStatus {
-    SUCCESS("success"), PENDING("pending"), FAILED("failed");
+    SUCCESS("success", 1), PENDING("pending", 0), FAILED("failed", 2);
     @Getter
     private final String message;
-    OrderStatus(String message) {
+    // 存储时使用的一字节编码
+    @Getter
+    private final byte code;
+    OrderStatus(String message, int code) {
         this.message = message;
+        this.code = (byte) code;
+    }
+
+    public static OrderStatus of(int code) {
+        for (OrderStatus status : values()) {
+            if (status.code == code) {
+                return status;
+            }
+        }
+        return null;
     }
 }
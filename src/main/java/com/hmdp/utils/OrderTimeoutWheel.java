@@ -0,0 +1,232 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.ZSetOperations;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static com.hmdp.utils.RedisConstants.ORDER_TIMEOUT_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_RECONCILE_STATE_KEY;
+
+/**
+ * <p>
+ * 未支付订单超时取消: Redis ZSET 持久化截止时间, 本地哈希时间轮调度
+ * </p>
+ * 订单落库后以截止时间为 score 加入 ZSET {@link RedisConstants#ORDER_TIMEOUT_KEY}, 重启不会丢.
+ * 时间轮只装载未来一圈(slots * tick)内到期的订单, 更远的留在 ZSET 里, 转到时再装载, 所以格子里不需要记圈数,
+ * 每个订单只占格子数组里的一个 long. 一个线程负责装载和转动, 没有每个订单一个的定时任务.
+ * 到期的订单按批取消: 数据库里还是未支付的才取消并回补库存, 再回滚 Redis 的库存和限购名额.
+ * 多个节点装载同一个 ZSET, 数据库上的条件更新保证一个订单只被取消一次.
+ * 支付时限短于一圈时新订单的截止时间已经在装载过的范围内, ZSET 不会再装载它, 由跟踪它的节点直接放进时间轮
+ *
+ * @author scatteredream
+ */
+@Slf4j
+@Component
+public class OrderTimeoutWheel {
+    private static final int PAGE = 10000;
+
+    @Value("${custom.seckill.payTimeout}")
+    private Long payTimeout;
+
+    @Value("${custom.seckill.timeoutTick}")
+    private Long tick;
+
+    @Value("${custom.seckill.timeoutSlots}")
+    private Integer slots;
+
+    @Value("${custom.seckill.timeoutBatch}")
+    private Integer batchSize;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    @Lazy
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private SeckillStockClient seckillStockClient;
+
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
+    // 每个格子一个 long 数组存订单ID, sizes 是各格子的元素个数; 只有调度线程访问
+    private long[][] buckets;
+
+    private int[] sizes;
+
+    private int mask;
+
+    // 下一个要处理的 tick
+    private long cursor;
+
+    // ZSET 中 score 不超过这个值的订单已经装载进时间轮
+    private long loadedUntil;
+
+    // 本节点刚加入 ZSET 的订单 {orderId, deadline}, 由调度线程检查是否要直接放进时间轮
+    private final Queue<long[]> recent = new ConcurrentLinkedQueue<>();
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void init() {
+        // 格子数取 2 的幂, 用位运算定位
+        int n = Integer.highestOneBit(Math.max(2, slots - 1)) << 1;
+        buckets = new long[n][];
+        sizes = new int[n];
+        mask = n - 1;
+        cursor = System.currentTimeMillis() / tick;
+        loadedUntil = 0;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "order-timeout-wheel"));
+        scheduler.scheduleAtFixedRate(this::advance, tick, tick, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * 开始跟踪刚落库的未支付订单, 已经在跟踪的订单不会推迟截止时间
+     */
+    public void track(Collection<Long> orderIds) {
+        if (orderIds.isEmpty()) {
+            return;
+        }
+        double deadline = System.currentTimeMillis() + payTimeout;
+        Set<ZSetOperations.TypedTuple<String>> tuples = orderIds.stream()
+                .map(id -> ZSetOperations.TypedTuple.of(id.toString(), deadline))
+                .collect(Collectors.toSet());
+        stringRedisTemplate.opsForZSet().addIfAbsent(ORDER_TIMEOUT_KEY, tuples);
+        // 写入 ZSET 之后再交给调度线程, 之后的装载要么能查到它, 要么已经越过它的截止时间
+        for (Long id : orderIds) {
+            recent.offer(new long[]{id, (long) deadline});
+        }
+    }
+
+    /**
+     * 订单已支付, 不再跟踪; 时间轮里残留的ID到期时条件更新不会命中
+     */
+    public void untrack(Long orderId) {
+        stringRedisTemplate.opsForZSet().remove(ORDER_TIMEOUT_KEY, orderId.toString());
+    }
+
+    private void advance() {
+        try {
+            long now = System.currentTimeMillis();
+            addRecent();
+            load();
+            long current = now / tick;
+            List<Long> expired = new ArrayList<>();
+            while (cursor <= current) {
+                drain((int) (cursor & mask), expired);
+                cursor++;
+                if (expired.size() >= batchSize) {
+                    cancel(expired);
+                    expired.clear();
+                }
+            }
+            cancel(expired);
+        } catch (Exception e) {
+            log.error("订单超时调度失败", e);
+        }
+    }
+
+    /**
+     * 把未来一圈内到期的订单从 ZSET 装载进时间轮, 已经过期的(例如重启期间)放进当前格子
+     */
+    private void load() {
+        // 从 cursor 开始的一圈, 不会有两个 tick 落进同一个格子
+        long until = (cursor + mask) * tick;
+        if (until <= loadedUntil) {
+            return;
+        }
+        long offset = 0;
+        while (true) {
+            Set<ZSetOperations.TypedTuple<String>> page = stringRedisTemplate.opsForZSet()
+                    .rangeByScoreWithScores(ORDER_TIMEOUT_KEY, loadedUntil + 1, until, offset, PAGE);
+            if (page == null || page.isEmpty()) {
+                break;
+            }
+            for (ZSetOperations.TypedTuple<String> tuple : page) {
+                long deadline = Objects.requireNonNull(tuple.getScore()).longValue();
+                long slotTick = Math.max(cursor, deadline / tick);
+                add((int) (slotTick & mask), Long.parseLong(Objects.requireNonNull(tuple.getValue())));
+            }
+            if (page.size() < PAGE) {
+                break;
+            }
+            offset += PAGE;
+        }
+        loadedUntil = until;
+    }
+
+    /**
+     * 截止时间已经在装载过的范围内的新订单, ZSET 不会再装载, 直接放进时间轮; 其余的等装载
+     */
+    private void addRecent() {
+        for (long[] entry; (entry = recent.poll()) != null; ) {
+            if (entry[1] <= loadedUntil) {
+                add((int) (Math.max(cursor, entry[1] / tick) & mask), entry[0]);
+            }
+        }
+    }
+
+    private void add(int slot, long orderId) {
+        long[] bucket = buckets[slot];
+        if (bucket == null) {
+            bucket = buckets[slot] = new long[16];
+        } else if (sizes[slot] == bucket.length) {
+            bucket = buckets[slot] = Arrays.copyOf(bucket, bucket.length << 1);
+        }
+        bucket[sizes[slot]++] = orderId;
+    }
+
+    private void drain(int slot, List<Long> expired) {
+        long[] bucket = buckets[slot];
+        for (int i = 0; i < sizes[slot]; i++) {
+            expired.add(bucket[i]);
+        }
+        // 清空后释放大数组, 秒杀高峰过后不占内存
+        buckets[slot] = null;
+        sizes[slot] = 0;
+    }
+
+    private void cancel(List<Long> orderIds) {
+        if (orderIds.isEmpty()) {
+            return;
+        }
+        //TODO 1. 数据库里还是未支付的订单改为已取消, 回补库存
+        List<VoucherOrder> cancelled = voucherOrderService.cancelUnpaidOrders(orderIds);
+        //TODO 2. 回滚 Redis 的库存和限购名额, 每个分段一次脚本调用
+        Map<Long, List<VoucherOrder>> ordersByVoucher = cancelled.stream()
+                .collect(Collectors.groupingBy(VoucherOrder::getVoucherId));
+        ordersByVoucher.forEach((voucherId, orders) -> {
+            seckillStockClient.rollbackBatch(voucherId, orders);
+            soldOutRegistry.markAvailable(voucherId);
+            // 对账时已确认订单要扣掉取消的
+            stringRedisTemplate.opsForHash().increment(SECKILL_RECONCILE_STATE_KEY, "cancelled:" + voucherId, orders.size());
+        });
+        //TODO 3. 不再跟踪, 已支付的订单也一并移除
+        stringRedisTemplate.opsForZSet().remove(ORDER_TIMEOUT_KEY,
+                orderIds.stream().map(String::valueOf).toArray());
+        if (!cancelled.isEmpty()) {
+            log.info("取消超时未支付订单 {} 单", cancelled.size());
+        }
+    }
+}
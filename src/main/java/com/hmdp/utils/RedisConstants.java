@@ -10,16 +10,37 @@ public class RedisConstants {
     public static final Long CACHE_NULL_TTL = 2L;//原版
 
     public static final Long CACHE_DATA_TTL = 30L;//一般数据的TTL
+    public static final String CACHE_INVALIDATE_CHANNEL = "cache:invalidate";//进程内缓存失效广播频道
+    public static final String CACHE_LOCK_RELEASED_CHANNEL = "cache:lock:released";//缓存重建锁释放广播频道
     public static final String CACHE_SHOP_KEY = "cache:shop:";
+    public static final String CACHE_USER_KEY = "cache:user:";//用户公开信息 UserDTO
     public static final String CACHE_SHOP_TYPE_KEY = "cache:shoptype";
 
     public static final String LOCK_SHOP_KEY = "lock:shop:";//商铺互斥锁的key
     public static final Long LOCK_TTL = 10L;//一般互斥锁的TTL
 
     public static final String ORDER_KEY_PREFIX = "order:";
+    public static final String ORDER_STATUS_KEY = "order:status:";//按分钟分桶的订单状态hash
+    public static final String ORDER_RESULT_CHANNEL = "order:result";//订单结果广播频道
+    public static final String ORDER_TIMEOUT_KEY = "order:timeout";//未支付订单的截止时间zset
+
+    public static final String ID_WORKER_LEASE_PREFIX = "id:worker:";//snowflake workerId租约
+    public static final String ID_WORKER_LAST_KEY = "id:worker:last";//各workerId当前租约内最多可能用到的秒数hash
 
     public static final String SECKILL_STOCK_PREFIX = "seckill:stock:";
     public static final String SECKILL_ORDER_PREFIX = "seckill:order:";
+    public static final String SECKILL_SEGMENT_PREFIX = "seckill:segment:";//库存分段数
+    public static final String SECKILL_META_PREFIX = "seckill:meta:";//活动信息hash: begin end quota membership
+    public static final String SECKILL_ROLLBACK_PREFIX = "seckill:rollback:";//已回滚的订单ID set, 回滚按订单幂等
+    public static final String MEMBERSHIP_HASH = "hash";//下单记录编码: userId -> 已下单数
+    public static final String MEMBERSHIP_BITMAP = "bitmap";//下单记录编码: 按 userId 分块的位图, 只用于一人一单
+    public static final String SECKILL_STREAM_KEY = "stream.orders";//stream 模式的订单队列前缀, 每个分段一个 stream.orders:{tag}
+    public static final String SECKILL_SOLD_OUT_CHANNEL = "seckill:soldout";//售罄广播频道
+    public static final String SECKILL_RESTOCK_CHANNEL = "seckill:restock";//库存回补广播频道
+    public static final String SECKILL_RECONCILE_LEASE_KEY = "seckill:reconcile:lease";//对账租约
+    public static final String SECKILL_RECONCILE_STATE_KEY = "seckill:reconcile:state";//对账水位线和各券已确认订单数
+    public static final String SECKILL_SHARD_LEASE_PREFIX = "seckill:shard:lease:";//订单分片租约
+    public static final String SECKILL_SHARD_NODES_KEY = "seckill:shard:nodes";//参与分片的节点心跳zset
     public static final String BLOG_LIKED_KEY = "blog:liked:";
     public static final String FEED_KEY = "feed:";
     public static final String SHOP_GEO_KEY = "shop:geo:";
@@ -9,4 +9,6 @@ import java.time.LocalDateTime;
 public class RedisData {
     private LocalDateTime expireTime;
     private Object data;
+    // XFetch 模式下记录上次重建耗时, 毫秒
+    private Long delta;
 }
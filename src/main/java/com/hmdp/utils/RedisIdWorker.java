@@ -1,25 +1,75 @@
 package com.hmdp.utils;
 
 
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.data.redis.core.StringRedisTemplate;
 import org.springframework.stereotype.Component;
 
+import java.time.LocalDate;
 import java.time.LocalDateTime;
 import java.time.ZoneOffset;
 import java.time.format.DateTimeFormatter;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * <p>
+ * 全局ID生成器: 时间戳(秒) + 当天的序列号
+ * </p>
+ * incr 模式每个ID一次 INCR; segment 模式每个节点一次 INCRBY 租一段序列号, 在本地用原子计数器发放,
+ * 用掉 80% 时异步预取下一段. 序列号按天从 Redis 计数器分配, 所以不同节点拿到的段互不重叠, ID 不会重复;
+ * 同一节点发出的ID严格递增, 不同节点之间只保证按秒有序
+ */
 @Slf4j
 @Component
-public class RedisIdWorker {
+@ConditionalOnProperty(name = "custom.id.worker", havingValue = "redis", matchIfMissing = true)
+public class RedisIdWorker implements IIdWorker {
 
-    public static final long BEGIN_TIMESTAMP = 1730574577L;
-    public static final int COUNT_BITS = 32;
+    private static final long SECONDS_PER_DAY = 86400L;
+    private static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy:MM:dd");
     private final StringRedisTemplate stringRedisTemplate;
+
+    @Value("${custom.id.mode}")
+    private String mode;
+
+    @Value("${custom.id.segmentSize}")
+    private Integer segmentSize;
+
+    // keyPrefix -> 正在使用的序列号段
+    private final Map<String, SegmentBuffer> buffers = new ConcurrentHashMap<>();
+
+    private ExecutorService prefetcher;
+
     public RedisIdWorker(StringRedisTemplate stringRedisTemplate) {
         this.stringRedisTemplate = stringRedisTemplate;
     }
 
+    @PostConstruct
+    public void init() {
+        if ("segment".equals(mode)) {
+            prefetcher = Executors.newSingleThreadExecutor(r -> {
+                Thread thread = new Thread(r, "id-segment-prefetch");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (prefetcher != null) {
+            prefetcher.shutdownNow();
+        }
+    }
+
     /**
      * 时间戳+序列号 ID一共64位
      *
@@ -27,15 +77,17 @@ public class RedisIdWorker {
      * @return 返回的id值 long
      */
 
+    @Override
     public long nextId(String keyPrefix) {
         //时间戳,支持69年
-        LocalDateTime now = LocalDateTime.now();
-        long epochSecond = now.toEpochSecond(ZoneOffset.UTC);
+        long epochSecond = LocalDateTime.now().toEpochSecond(ZoneOffset.UTC);
         long timeStamp = epochSecond - BEGIN_TIMESTAMP;
+        if (prefetcher != null) {
+            return timeStamp << COUNT_BITS | nextSequence(keyPrefix, Math.floorDiv(epochSecond, SECONDS_PER_DAY));
+        }
         //序列号, 1秒能支持2^32个序列号
-        String date = now.format(DateTimeFormatter.ofPattern("yyyy:MM:dd"));
         Long count = stringRedisTemplate.opsForValue()
-                .increment("incr:" + keyPrefix + date);
+                .increment(sequenceKey(keyPrefix, Math.floorDiv(epochSecond, SECONDS_PER_DAY)));
 //                .increment("incr:" + keyPrefix + ":" + date);
         if (count == null) {
             count = 0L;
@@ -44,5 +96,96 @@ public class RedisIdWorker {
         return timeStamp << COUNT_BITS | count;
     }
 
+    /**
+     * 从本地的序列号段取一个序列号, 段用完或者跨天时再去 Redis 租
+     */
+    private long nextSequence(String keyPrefix, long day) {
+        SegmentBuffer buffer = buffers.computeIfAbsent(keyPrefix, SegmentBuffer::new);
+        while (true) {
+            Segment segment = buffer.current;
+            if (segment != null && segment.day == day) {
+                long sequence = segment.cursor.getAndIncrement();
+                if (sequence < segment.end) {
+                    //TODO 用到 80% 时预取下一段, 恰好取到这个序列号的线程负责触发, 只触发一次
+                    if (sequence == segment.prefetchAt) {
+                        buffer.prefetch(day);
+                    }
+                    return sequence;
+                }
+            }
+            buffer.advance(segment, day);
+        }
+    }
+
+    /**
+     * 一次 INCRBY 租一段序列号 [end - size + 1, end]
+     */
+    private Segment lease(String keyPrefix, long day) {
+        Long end = stringRedisTemplate.opsForValue().increment(sequenceKey(keyPrefix, day), segmentSize);
+        if (end == null) {
+            throw new IllegalStateException("租用ID序列号段失败: " + keyPrefix);
+        }
+        return new Segment(day, end - segmentSize + 1, end + 1, end + 1 - segmentSize / 5);
+    }
+
+    private static String sequenceKey(String keyPrefix, long day) {
+        return "incr:" + keyPrefix + LocalDate.ofEpochDay(day).format(DATE_FORMATTER);
+    }
+
+    /**
+     * 一段序列号 [start, end), 只在租用它的那一天使用; 跨天以后其他节点会从新一天的计数器重新分配
+     */
+    private static final class Segment {
+        private final long day;
+        private final long end;
+        private final long prefetchAt;
+        private final AtomicLong cursor;
+
+        private Segment(long day, long start, long end, long prefetchAt) {
+            this.day = day;
+            this.end = end;
+            this.prefetchAt = prefetchAt;
+            this.cursor = new AtomicLong(start);
+        }
+    }
+
+    /**
+     * 一个 keyPrefix 的双缓冲: 正在使用的段和预取中的下一段
+     */
+    private final class SegmentBuffer {
+        private final String keyPrefix;
+        private volatile Segment current;
+        private CompletableFuture<Segment> next;
+
+        private SegmentBuffer(String keyPrefix) {
+            this.keyPrefix = keyPrefix;
+        }
+
+        private synchronized void prefetch(long day) {
+            if (next == null) {
+                next = CompletableFuture.supplyAsync(() -> lease(keyPrefix, day), prefetcher);
+            }
+        }
+
+        /**
+         * 换段: 只有第一个发现 exhausted 用完的线程真正切换, 其余线程重新读 current
+         */
+        private synchronized void advance(Segment exhausted, long day) {
+            if (current != exhausted) {
+                return;
+            }
+            Segment segment = null;
+            if (next != null) {
+                try {
+                    segment = next.join();
+                } catch (RuntimeException e) {
+                    log.warn("预取ID序列号段失败, 同步重新租用: {}", keyPrefix, e);
+                }
+                next = null;
+            }
+            // 预取的是前一天的段也不能用
+            current = segment != null && segment.day == day ? segment : lease(keyPrefix, day);
+        }
+    }
 
 }
@@ -0,0 +1,149 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>
+ * 秒杀券激活调度器: 开始前 lookahead 毫秒把库存, 时间窗口和限购数预热到 Redis, 结束后清理库存和下单记录
+ * </p>
+ * 激活以后下单请求的时间窗口, 库存和限购都由 Lua 脚本原子判断, 不再访问数据库.
+ * 激活和清理在 Redis 中各有一个原子的标记, 所有节点都运行调度器也只会执行一次
+ *
+ * @author scatteredream
+ */
+@Slf4j
+@Component
+public class SeckillActivationScheduler {
+
+    @Value("${custom.seckill.activationInterval}")
+    private Long interval;
+
+    @Value("${custom.seckill.activationLookahead}")
+    private Long lookahead;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    @Lazy
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private SeckillStockClient seckillStockClient;
+
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
+    // 本节点已知已经激活/已经清理的券, 避免每个周期重复访问 Redis
+    private final Set<Long> activated = ConcurrentHashMap.newKeySet();
+
+    private final Set<Long> closed = ConcurrentHashMap.newKeySet();
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void init() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "seckill-activation"));
+        scheduler.scheduleWithFixedDelay(this::tick, 0, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * 新建秒杀券时调用: 开始时间在 lookahead 以内的立即激活
+     */
+    public void activateIfDue(SeckillVoucher voucher) {
+        if (!voucher.getBeginTime().isAfter(LocalDateTime.now().plus(Duration.ofMillis(lookahead)))) {
+            activate(voucher);
+        }
+    }
+
+    private void tick() {
+        try {
+            LocalDateTime now = LocalDateTime.now();
+            //TODO 1. 预热即将开始和正在进行的券
+            List<SeckillVoucher> due = seckillVoucherService.query()
+                    .le("begin_time", now.plus(Duration.ofMillis(lookahead)))
+                    .gt("end_time", now).list();
+            for (SeckillVoucher voucher : due) {
+                if (!activated.contains(voucher.getVoucherId())) {
+                    activate(voucher);
+                }
+            }
+            //TODO 2. 清理已经结束的券, 活动信息保留期内的都检查一遍, 节点宕机错过的也能补上
+            List<SeckillVoucher> ended = seckillVoucherService.query()
+                    .le("end_time", now)
+                    .gt("end_time", now.minusDays(1)).list();
+            for (SeckillVoucher voucher : ended) {
+                Long voucherId = voucher.getVoucherId();
+                if (closed.add(voucherId)) {
+                    activated.remove(voucherId);
+                    if (seckillStockClient.deactivate(voucherId)) {
+                        log.info("秒杀券 {} 已结束, 清理库存和下单记录", voucherId);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            log.error("秒杀券激活调度失败", e);
+        }
+    }
+
+    private void activate(SeckillVoucher voucher) {
+        Long voucherId = voucher.getVoucherId();
+        if (!seckillStockClient.meta(voucherId).isEmpty()) {
+            // 其他节点已经激活了
+            activated.add(voucherId);
+            return;
+        }
+        // 活动进行中重新激活(例如 Redis 数据丢失)时, 从数据库恢复各用户的已下单数, 已取消的不算
+        Map<Long, Integer> ordered = new HashMap<>();
+        List<Map<String, Object>> rows = voucherOrderService.listMaps(new QueryWrapper<VoucherOrder>()
+                .select("user_id", "count(*) AS cnt")
+                .eq("voucher_id", voucherId)
+                .ne("status", 4)
+                .groupBy("user_id"));
+        for (Map<String, Object> row : rows) {
+            ordered.put(((Number) row.get("user_id")).longValue(), ((Number) row.get("cnt")).intValue());
+        }
+        boolean done = seckillStockClient.activate(voucherId, voucher.getStock(),
+                voucher.getSegments() == null ? 1 : voucher.getSegments(),
+                toMillis(voucher.getBeginTime()), toMillis(voucher.getEndTime()),
+                voucher.getQuota() == null ? 1 : voucher.getQuota(), voucher.getMembership(), ordered);
+        activated.add(voucherId);
+        if (done) {
+            soldOutRegistry.markAvailable(voucherId);
+            log.info("秒杀券 {} 已激活: 库存 {} 限购 {} 时间 {} ~ {}", voucherId, voucher.getStock(),
+                    voucher.getQuota(), voucher.getBeginTime(), voucher.getEndTime());
+        }
+    }
+
+    private static long toMillis(LocalDateTime time) {
+        return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+}
@@ -0,0 +1,252 @@
+package com.hmdp.utils;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.core.QueueInformation;
+import org.springframework.amqp.rabbit.listener.MessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.RabbitListenerEndpointRegistry;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * direct.seckill.queue 消费者的自适应控制器: 根据队列积压, 落库耗时和消费者忙碌程度调整消费者数量和 prefetch
+ * </p>
+ * 每个周期按 AIMD 调整: 落库耗时的 EWMA 超过 2 倍目标值说明数据库吃不消, 消费者和 prefetch 减半;
+ * 耗时正常, 有积压且消费者都在忙时消费者加一, prefetch 翻倍; 没有积压且消费者空闲时消费者减一.
+ * 消费者数量的上下限和 prefetch 上限由配置给出.
+ * 消费者数量运行时直接生效; prefetch 要重启容器, 只有连续 PREFETCH_STABLE_ROUNDS 个周期都要求同一方向调整,
+ * 并且距离上次重启超过 prefetchRestartInterval 才真正调整, 避免频繁重启造成大量重新投递.
+ * 分片模式(custom.seckill.shards > 1)下不生效: 分片队列由 {@link SeckillShardAssigner} 的容器消费,
+ * 每个分片固定一个消费者保证同一张券串行落库, 消费者数量由持有的分片数决定, 不能按积压调整
+ *
+ * @author scatteredream
+ */
+@Slf4j
+@Component
+public class SeckillConsumerController {
+    private static final String QUEUE = "direct.seckill.queue";
+    private static final String SINGLE_LISTENER = "seckillListener";
+    private static final String BATCH_LISTENER = "seckillBatchListener";
+    // EWMA 平滑系数
+    private static final double ALPHA = 0.2;
+    // prefetch 调整方向连续保持多少个周期才生效
+    private static final int PREFETCH_STABLE_ROUNDS = 3;
+
+    @Value("${custom.seckill.pipeline}")
+    private String pipeline;
+
+    @Value("${custom.seckill.shards}")
+    private Integer shards;
+
+    @Value("${spring.rabbitmq.listener.simple.prefetch}")
+    private Integer initialPrefetch;
+
+    @Value("${custom.seckill.batchSize}")
+    private Integer batchSize;
+
+    @Value("${custom.seckill.minConsumers}")
+    private Integer minConsumers;
+
+    @Value("${custom.seckill.maxConsumers}")
+    private Integer maxConsumers;
+
+    @Value("${custom.seckill.maxPrefetch}")
+    private Integer maxPrefetch;
+
+    @Value("${custom.seckill.targetLatency}")
+    private Long targetLatency;
+
+    @Value("${custom.seckill.adaptInterval}")
+    private Long adaptInterval;
+
+    @Value("${custom.seckill.prefetchRestartInterval}")
+    private Long prefetchRestartInterval;
+
+    @Resource
+    private RabbitListenerEndpointRegistry listenerRegistry;
+
+    @Resource
+    private AmqpAdmin amqpAdmin;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    // 落库耗时的 EWMA, 纳秒; 以 double 的位存放
+    private final AtomicLong latencyEwma = new AtomicLong(Double.doubleToLongBits(0));
+
+    // 本周期内消费者处理消息的累计耗时, 用来计算忙碌程度
+    private final AtomicLong busyNanos = new AtomicLong();
+
+    private final AtomicInteger consumers = new AtomicInteger();
+
+    private final AtomicInteger prefetch = new AtomicInteger();
+
+    // 最近几个周期要求的 prefetch 调整方向(1 增大, -1 减小)和连续次数, 只在调度线程上访问
+    private int prefetchDirection;
+
+    private int prefetchRounds;
+
+    // 上次为了 prefetch 重启容器的时间
+    private long lastRestart;
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void init() {
+        if (!"rabbit".equals(pipeline)) {
+            return;
+        }
+        if (shards > 1) {
+            log.info("分片模式下由分片分配器管理消费者, 自适应控制器不生效");
+            return;
+        }
+        Gauge.builder("seckill.consumer.count", consumers, AtomicInteger::get)
+                .description("direct.seckill.queue 当前消费者数").register(meterRegistry);
+        Gauge.builder("seckill.consumer.prefetch", prefetch, AtomicInteger::get)
+                .description("direct.seckill.queue 当前 prefetch").register(meterRegistry);
+        Gauge.builder("seckill.consumer.latency", this, c -> c.latencyMillis())
+                .description("落库耗时 EWMA, 毫秒").register(meterRegistry);
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "seckill-consumer-controller"));
+        scheduler.scheduleWithFixedDelay(this::adjust, adaptInterval, adaptInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+    }
+
+    /**
+     * 消费者线程每处理完一次落库(单条或整批一个事务)调用一次
+     *
+     * @param nanos 本次处理耗时
+     */
+    public void record(long nanos) {
+        busyNanos.addAndGet(nanos);
+        latencyEwma.getAndUpdate(bits -> {
+            double ewma = Double.longBitsToDouble(bits);
+            return Double.doubleToLongBits(ewma == 0 ? nanos : ewma + ALPHA * (nanos - ewma));
+        });
+    }
+
+    private double latencyMillis() {
+        return Double.longBitsToDouble(latencyEwma.get()) / 1_000_000;
+    }
+
+    private void adjust() {
+        try {
+            SimpleMessageListenerContainer container = runningContainer();
+            long busy = busyNanos.getAndSet(0);
+            if (container == null) {
+                return;
+            }
+            QueueInformation info = amqpAdmin.getQueueInfo(QUEUE);
+            long depth = info == null ? 0 : info.getMessageCount();
+            int n = consumers.get();
+            int p = prefetch.get();
+            double latency = latencyMillis();
+            // 所有消费者在本周期内处于处理中的时间占比
+            double utilization = (double) busy / (adaptInterval * 1_000_000L * n);
+            boolean batch = BATCH_LISTENER.equals(container.getListenerId());
+
+            int nextConsumers = n;
+            int nextPrefetch = p;
+            if (latency > 2 * targetLatency) {
+                // 数据库变慢, 乘性退让
+                nextConsumers = Math.max(minConsumers, n / 2);
+                nextPrefetch = Math.max(1, p / 2);
+            } else if (latency <= targetLatency && depth > (long) n * p && utilization > 0.8) {
+                // 有积压且消费者都在忙, 加性扩容
+                nextConsumers = Math.min(maxConsumers, n + 1);
+                nextPrefetch = Math.min(maxPrefetch, p * 2);
+            } else if (depth == 0 && utilization < 0.2) {
+                nextConsumers = Math.max(minConsumers, n - 1);
+            }
+            // 批量消费的 prefetch 要和 batchSize 一致, 不调整
+            if (batch) {
+                nextPrefetch = p;
+            }
+            nextPrefetch = stablePrefetch(p, nextPrefetch);
+            if (nextConsumers == n && nextPrefetch == p) {
+                return;
+            }
+            log.info("调整消费者: 积压 {} 落库耗时 {}ms 忙碌 {}% 消费者 {} -> {} prefetch {} -> {}",
+                    depth, String.format("%.1f", latency), Math.round(utilization * 100),
+                    n, nextConsumers, p, nextPrefetch);
+            apply(container, nextConsumers, nextPrefetch);
+        } catch (Exception e) {
+            log.error("调整消费者失败", e);
+        }
+    }
+
+    /**
+     * prefetch 的滞后: 同一方向连续保持足够多个周期, 且距上次重启足够久才返回新值, 否则维持现状
+     */
+    private int stablePrefetch(int p, int wanted) {
+        int direction = Integer.signum(wanted - p);
+        if (direction == 0) {
+            prefetchDirection = 0;
+            prefetchRounds = 0;
+            return p;
+        }
+        prefetchRounds = direction == prefetchDirection ? prefetchRounds + 1 : 1;
+        prefetchDirection = direction;
+        if (prefetchRounds < PREFETCH_STABLE_ROUNDS
+                || System.currentTimeMillis() - lastRestart < prefetchRestartInterval) {
+            return p;
+        }
+        prefetchDirection = 0;
+        prefetchRounds = 0;
+        return wanted;
+    }
+
+    private void apply(SimpleMessageListenerContainer container, int nextConsumers, int nextPrefetch) {
+        int n = consumers.get();
+        // 固定 max == concurrent, 避免容器自带的扩缩容和这里互相干扰; 先放宽上限再调整数量
+        if (nextConsumers > n) {
+            container.setMaxConcurrentConsumers(nextConsumers);
+            container.setConcurrentConsumers(nextConsumers);
+        } else if (nextConsumers < n) {
+            container.setConcurrentConsumers(nextConsumers);
+            container.setMaxConcurrentConsumers(nextConsumers);
+        }
+        consumers.set(nextConsumers);
+        if (nextPrefetch != prefetch.get()) {
+            // prefetch 在消费者创建时生效, 重启容器让所有消费者用上新的窗口; 未确认的消息会重新投递, 落库是幂等的
+            container.setPrefetchCount(nextPrefetch);
+            prefetch.set(nextPrefetch);
+            lastRestart = System.currentTimeMillis();
+            container.stop();
+            container.start();
+        }
+    }
+
+    private SimpleMessageListenerContainer runningContainer() {
+        for (String id : new String[]{SINGLE_LISTENER, BATCH_LISTENER}) {
+            MessageListenerContainer container = listenerRegistry.getListenerContainer(id);
+            if (container instanceof SimpleMessageListenerContainer simple && simple.isRunning()) {
+                if (consumers.get() == 0) {
+                    // 第一次看到容器, 以 yaml 中的初始配置为起点
+                    consumers.set(simple.getActiveConsumerCount() == 0 ? minConsumers : simple.getActiveConsumerCount());
+                    prefetch.set(BATCH_LISTENER.equals(id) ? batchSize : initialPrefetch);
+                }
+                return simple;
+            }
+        }
+        return null;
+    }
+}
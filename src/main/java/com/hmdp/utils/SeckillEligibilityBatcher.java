@@ -0,0 +1,216 @@
+package com.hmdp.utils;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * <p>
+ * 下单资格判断的请求合并: 把极短时间窗口内到达的并发请求攒成一批, 同一张券一次脚本调用判断完
+ * </p>
+ * 请求线程把 (userId, voucherId) 放进队列后等待自己的结果, 派发线程每次最多等待 window 微秒
+ * 或者攒满 maxBatch 个请求, 按券分组调用 secKill_batch.lua, 再把每个请求的结果交还给各自的调用者.
+ * 分段库存的券不参与合并, 直接走单个请求的脚本.
+ * 等待结果有超时: 还没被派发线程取走的请求放弃排队, 退回单个请求的脚本; 停机时队列里的请求同样退回.
+ * 已经被取走的请求脚本正在执行, 一直等到结果为止; 请求线程被中断提前离开时, 判定有资格的结果由派发线程按订单回滚
+ *
+ * @author scatteredream
+ */
+@Slf4j
+@Component
+public class SeckillEligibilityBatcher {
+
+    @Value("${custom.seckill.eligibility}")
+    private String mode;
+
+    @Value("${custom.seckill.eligibilityWindow}")
+    private Long windowMicros;
+
+    @Value("${custom.seckill.eligibilityMaxBatch}")
+    private Integer maxBatch;
+
+    @Value("${custom.seckill.eligibilityDispatchers}")
+    private Integer dispatchers;
+
+    @Value("${custom.seckill.eligibilityTimeout}")
+    private Long timeoutMillis;
+
+    @Resource
+    private SeckillStockClient seckillStockClient;
+
+    private final BlockingQueue<Attempt> queue = new LinkedBlockingQueue<>(100_000);
+
+    private ExecutorService dispatcherExecutor;
+
+    // claimed: 派发线程取走准备执行脚本, 或者请求线程等待超时放弃, 先到先得
+    private record Attempt(Long voucherId, Long userId, Long orderId,
+                           CompletableFuture<Integer> verdict, AtomicBoolean claimed) {
+
+        boolean claim() {
+            return claimed.compareAndSet(false, true);
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        if (!isEnabled()) {
+            return;
+        }
+        dispatcherExecutor = Executors.newFixedThreadPool(dispatchers);
+        for (int i = 0; i < dispatchers; i++) {
+            dispatcherExecutor.submit(this::dispatchLoop);
+        }
+    }
+
+    @PreDestroy
+    public void destroy() throws InterruptedException {
+        if (dispatcherExecutor != null) {
+            dispatcherExecutor.shutdownNow();
+            dispatcherExecutor.awaitTermination(1, TimeUnit.SECONDS);
+            // 派发线程退出后才进队的请求
+            abandon(new ArrayList<>());
+        }
+    }
+
+    public boolean isEnabled() {
+        return "batch".equals(mode);
+    }
+
+    /**
+     * 判断下单资格, 语义与 {@link SeckillStockClient#acquire} 相同
+     *
+     * @param orderId 调用方提前生成的订单ID, 调用方离开后派发线程按它回滚占用的名额
+     */
+    public int acquire(Long voucherId, Long userId, Long orderId) {
+        if (seckillStockClient.segments(voucherId) > 1) {
+            return seckillStockClient.acquire(voucherId, userId);
+        }
+        Attempt attempt = new Attempt(voucherId, userId, orderId, new CompletableFuture<>(), new AtomicBoolean());
+        if (dispatcherExecutor.isShutdown() || !queue.offer(attempt)) {
+            // 队列满了说明派发线程跟不上, 直接单独调用
+            return seckillStockClient.acquire(voucherId, userId);
+        }
+        try {
+            return attempt.verdict().get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            if (attempt.claim()) {
+                // 还在队列里, 脚本不会再执行它, 单独调用
+                log.warn("等待批量判断超时, 退回单个请求: voucher [{}] user [{}]", voucherId, userId);
+                return seckillStockClient.acquire(voucherId, userId);
+            }
+            // 脚本已经在执行, 结果以脚本为准, 等到结果为止
+            return awaitDispatched(attempt);
+        } catch (CancellationException e) {
+            // 派发线程停止, 请求没有执行过
+            return seckillStockClient.acquire(voucherId, userId);
+        } catch (ExecutionException e) {
+            throw new CompletionException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            if (!attempt.claim()) {
+                leave(attempt);
+            }
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * 脚本已经在执行, 不设超时: Redis 调用本身有超时, 结果总会回来, 提前离开会让占用的名额无人回滚
+     */
+    private int awaitDispatched(Attempt attempt) {
+        try {
+            return attempt.verdict().get();
+        } catch (ExecutionException e) {
+            throw new CompletionException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            leave(attempt);
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * 请求线程不再等待已经派发的请求: 结果还没回来就取消, 由派发线程回滚; 已经回来并且有资格就自己回滚
+     */
+    private void leave(Attempt attempt) {
+        if (!attempt.verdict().cancel(false) && attempt.verdict().getNow(-1) == 0) {
+            seckillStockClient.rollback(attempt.voucherId(), attempt.userId(), attempt.orderId());
+        }
+    }
+
+    private void dispatchLoop() {
+        List<Attempt> batch = new ArrayList<>(maxBatch);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                //TODO 1. 阻塞等待第一个请求, 然后在窗口期内继续攒批
+                batch.add(queue.take());
+                long deadline = System.nanoTime() + TimeUnit.MICROSECONDS.toNanos(windowMicros);
+                while (batch.size() < maxBatch) {
+                    queue.drainTo(batch, maxBatch - batch.size());
+                    long remaining = deadline - System.nanoTime();
+                    if (batch.size() >= maxBatch || remaining <= 0) {
+                        break;
+                    }
+                    Attempt next = queue.poll(remaining, TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+                //TODO 2. 按券分组, 每张券一次脚本调用
+                dispatch(batch);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                // 停机: 攒了一半的批次和队列里剩下的请求都没有执行, 让调用方退回单个请求
+                abandon(batch);
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * 取消批次里和队列里所有还没执行的请求
+     */
+    private void abandon(List<Attempt> batch) {
+        queue.drainTo(batch);
+        for (Attempt attempt : batch) {
+            attempt.verdict().cancel(false);
+        }
+    }
+
+    private void dispatch(List<Attempt> batch) {
+        Map<Long, List<Attempt>> byVoucher = new HashMap<>();
+        for (Attempt attempt : batch) {
+            if (!attempt.claim()) {
+                // 请求线程已经等待超时, 自己单独调用了
+                continue;
+            }
+            byVoucher.computeIfAbsent(attempt.voucherId(), id -> new ArrayList<>()).add(attempt);
+        }
+        for (Map.Entry<Long, List<Attempt>> entry : byVoucher.entrySet()) {
+            List<Attempt> attempts = entry.getValue();
+            try {
+                int[] verdicts = seckillStockClient.acquireBatch(entry.getKey(),
+                        attempts.stream().map(Attempt::userId).toList());
+                for (int i = 0; i < attempts.size(); i++) {
+                    Attempt attempt = attempts.get(i);
+                    if (!attempt.verdict().complete(verdicts[i]) && verdicts[i] == 0) {
+                        // 请求线程已经离开, 没有人会下单, 回滚占用的库存和名额
+                        seckillStockClient.rollback(attempt.voucherId(), attempt.userId(), attempt.orderId());
+                    }
+                }
+            } catch (Exception e) {
+                log.error("批量判断下单资格失败: voucher [{}] {} 个请求", entry.getKey(), attempts.size(), e);
+                attempts.forEach(a -> a.verdict().completeExceptionally(e));
+            }
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.RabbitMQConfig;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.IVoucherOrderService;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.MessageDeliveryMode;
+import org.springframework.amqp.rabbit.connection.CorrelationData;
+import org.springframework.amqp.rabbit.connection.PublisherCallbackChannel;
+import org.springframework.amqp.rabbit.core.RabbitOperations;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+
+/**
+ * <p>
+ * 秒杀订单的异步发布: 请求线程只把订单放进有界缓冲区就返回, 由发布线程批量发送到 RabbitMQ
+ * </p>
+ * 每条消息带上订单ID作为 CorrelationData, 发出去以后登记在未确认表里, 收到 ack 才删除.
+ * nack 或者路由失败(return)的消息重新放回缓冲区重试, 超过重试次数则回滚 Redis 的库存和一人一单,
+ * 并把订单状态置为失败, 不会出现 Redis 扣了库存但订单凭空消失的情况
+ *
+ * @author scatteredream
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "custom.seckill.pipeline", havingValue = "rabbit", matchIfMissing = true)
+public class SeckillOrderPublisher implements IOrderPipeline {
+
+    @Value("${custom.seckill.publishBuffer}")
+    private Integer bufferSize;
+
+    @Value("${custom.seckill.publishBatch}")
+    private Integer publishBatch;
+
+    @Value("${custom.seckill.publishers}")
+    private Integer publishers;
+
+    @Value("${custom.seckill.publishRetries}")
+    private Integer publishRetries;
+
+    @Value("${custom.seckill.shards}")
+    private Integer shards;
+
+    @Resource
+    private RabbitTemplate rabbitTemplate;
+
+    @Resource
+    private SeckillStockClient seckillStockClient;
+
+    @Resource
+    private SoldOutRegistry soldOutRegistry;
+
+    @Resource
+    @Lazy
+    private IVoucherOrderService voucherOrderService;
+
+    private BlockingQueue<Pending> buffer;
+
+    // 已发送未确认的消息 orderId -> 订单
+    private final Map<Long, Pending> outstanding = new ConcurrentHashMap<>();
+
+    private ExecutorService publisherExecutor;
+
+    private volatile boolean running = true;
+
+    private record Pending(VoucherOrder order, int attempt) {
+    }
+
+    @PostConstruct
+    public void init() {
+        buffer = new ArrayBlockingQueue<>(bufferSize);
+        // 设置Confirm回调
+        rabbitTemplate.setConfirmCallback((correlationData, ack, cause) -> {
+            if (correlationData == null) {
+                return;
+            }
+            Long orderId = Long.valueOf(correlationData.getId());
+            Pending pending = outstanding.remove(orderId);
+            if (ack || pending == null) {
+                return;
+            }
+            log.warn("Failed to arrive exchange: {} message: {}", cause, orderId);
+            retryOrRollback(pending);
+        });
+        // 路由失败: broker 先 return 再 ack, 这里先把它从未确认表中拿掉
+        rabbitTemplate.setReturnsCallback(returned -> {
+            log.warn("Failed to route: " + returned.getMessage());
+            Object id = returned.getMessage().getMessageProperties()
+                    .getHeader(PublisherCallbackChannel.RETURNED_MESSAGE_CORRELATION_KEY);
+            Pending pending = id == null ? null : outstanding.remove(Long.valueOf(id.toString()));
+            if (pending != null) {
+                retryOrRollback(pending);
+            }
+        });
+        rabbitTemplate.setMandatory(true);
+        publisherExecutor = Executors.newFixedThreadPool(publishers);
+        for (int i = 0; i < publishers; i++) {
+            publisherExecutor.submit(this::publishLoop);
+        }
+    }
+
+    /**
+     * 停机时把缓冲区里剩下的订单发完, 超时则中断发布线程, 剩下的订单回滚下单资格
+     */
+    @PreDestroy
+    public void destroy() throws InterruptedException {
+        running = false;
+        publisherExecutor.shutdown();
+        if (!publisherExecutor.awaitTermination(10, TimeUnit.SECONDS)) {
+            log.error("停机时仍有 {} 个订单未发布", buffer.size());
+            publisherExecutor.shutdownNow();
+            publisherExecutor.awaitTermination(5, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * 订单放入缓冲区, 不等待 broker 确认
+     *
+     * @return 缓冲区已满返回 false, 调用方需要回滚下单资格
+     */
+    @Override
+    public boolean submit(VoucherOrder order) {
+        return buffer.offer(new Pending(order, 0));
+    }
+
+    private void publishLoop() {
+        List<Pending> batch = new ArrayList<>(publishBatch);
+        while (running || !buffer.isEmpty()) {
+            try {
+                Pending first = buffer.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                buffer.drainTo(batch, publishBatch - 1);
+                // 发送前整批登记为未确认, 中途失败时还没发出去的订单也能在下面找回来
+                for (Pending pending : batch) {
+                    outstanding.put(pending.order().getId(), pending);
+                }
+                // 一批消息在同一个 channel 上连续发送
+                rabbitTemplate.invoke(operations -> {
+                    for (Pending pending : batch) {
+                        send(operations, pending);
+                    }
+                    return null;
+                });
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                // 发布线程退出, 手上和缓冲区里的订单不会再发出去了, 直接回滚
+                abandon(batch);
+                return;
+            } catch (Exception e) {
+                log.error("批量发布订单失败: {} 条", batch.size(), e);
+                for (Pending pending : batch) {
+                    if (outstanding.remove(pending.order().getId()) != null) {
+                        retryOrRollback(pending);
+                    }
+                }
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    private void send(RabbitOperations operations, Pending pending) {
+        VoucherOrder order = pending.order();
+        operations.convertAndSend("hmdianping.direct",
+                RabbitMQConfig.seckillRoutingKey(order.getVoucherId(), shards), order, message -> {
+                    message.getMessageProperties().setDeliveryMode(MessageDeliveryMode.PERSISTENT);
+                    message.getMessageProperties().setHeader("retry-count", "0");
+                    return message;
+                },
+                new CorrelationData(order.getId().toString())
+        );
+    }
+
+    private void retryOrRollback(Pending pending) {
+        VoucherOrder order = pending.order();
+        if (pending.attempt() < publishRetries && running
+                && buffer.offer(new Pending(order, pending.attempt() + 1))) {
+            log.info("第 {} 次重新发布订单: {}", pending.attempt() + 1, order);
+            return;
+        }
+        rollback(order);
+    }
+
+    /**
+     * 放弃发布: 当前批次里还没确认的和缓冲区里剩下的订单全部回滚
+     */
+    private void abandon(List<Pending> batch) {
+        for (Pending pending : batch) {
+            if (outstanding.remove(pending.order().getId()) != null) {
+                rollback(pending.order());
+            }
+        }
+        batch.clear();
+        buffer.drainTo(batch);
+        for (Pending pending : batch) {
+            rollback(pending.order());
+        }
+    }
+
+    private void rollback(VoucherOrder order) {
+        log.error("订单发布失败, 回滚下单资格: {}", order);
+        seckillStockClient.rollback(order.getVoucherId(), order.getUserId(), order.getId());
+        soldOutRegistry.markAvailable(order.getVoucherId());
+        voucherOrderService.setOrderStatus(order.getId(), OrderStatus.FAILED);
+    }
+}
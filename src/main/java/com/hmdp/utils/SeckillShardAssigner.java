@@ -0,0 +1,179 @@
+package com.hmdp.utils;
+
+import com.hmdp.config.RabbitMQConfig;
+import com.hmdp.config.RabbitMQListener;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.AcknowledgeMode;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.listener.DirectMessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.api.ChannelAwareMessageListener;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_SHARD_LEASE_PREFIX;
+import static com.hmdp.utils.RedisConstants.SECKILL_SHARD_NODES_KEY;
+
+/**
+ * <p>
+ * 订单分片队列的分配: 各节点通过 Redis 租约分摊 direct.seckill.queue.0 ~ N-1
+ * </p>
+ * 每个节点定期在 zset 里心跳, 按存活节点数算出自己应得的份额 ceil(N / 节点数):
+ * 多了就释放多余的租约并停止消费, 少了就抢空闲的租约并开始消费. 节点宕机后租约过期, 分片被其他节点接管.
+ * 每个分片队列只有一个消费者, 同一张券的订单在一个消费者上串行落库, 秒杀券库存行的锁竞争不会跨消费者
+ *
+ * @author scatteredream
+ */
+@Slf4j
+@Component
+public class SeckillShardAssigner {
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+
+    static {
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("lease_renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    @Value("${custom.seckill.pipeline}")
+    private String pipeline;
+
+    @Value("${custom.seckill.shards}")
+    private Integer shards;
+
+    @Value("${custom.seckill.shardLeaseTtl}")
+    private Long leaseTtl;
+
+    @Value("${spring.rabbitmq.listener.simple.prefetch}")
+    private Integer prefetch;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private ConnectionFactory connectionFactory;
+
+    @Resource
+    @Lazy
+    private RabbitMQListener rabbitMQListener;
+
+    private final String nodeId = ManagementFactory.getRuntimeMXBean().getName() + ":" + UUID.randomUUID();
+
+    // 本节点持有租约的分片
+    private final TreeSet<Integer> owned = new TreeSet<>();
+
+    private DirectMessageListenerContainer container;
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void init() {
+        if (!"rabbit".equals(pipeline) || shards <= 1) {
+            return;
+        }
+        container = new DirectMessageListenerContainer(connectionFactory);
+        container.setAcknowledgeMode(AcknowledgeMode.MANUAL);
+        container.setConsumersPerQueue(1);
+        container.setPrefetchCount(prefetch);
+        container.setMessageListener((ChannelAwareMessageListener) rabbitMQListener::receiveShardMessage);
+        container.start();
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "seckill-shard-assigner"));
+        // 续约周期取租约有效期的 1/3, 两次续约失败之前租约不会过期
+        long period = leaseTtl / 3;
+        scheduler.scheduleWithFixedDelay(this::rebalance, 0, period, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdownNow();
+        container.stop();
+        synchronized (owned) {
+            for (Integer shard : owned) {
+                stringRedisTemplate.execute(RELEASE_SCRIPT, List.of(SECKILL_SHARD_LEASE_PREFIX + shard), nodeId);
+            }
+            owned.clear();
+        }
+        stringRedisTemplate.opsForZSet().remove(SECKILL_SHARD_NODES_KEY, nodeId);
+    }
+
+    /**
+     * 当前持有的分片, 用于监控和测试
+     */
+    public Set<Integer> ownedShards() {
+        synchronized (owned) {
+            return new TreeSet<>(owned);
+        }
+    }
+
+    private void rebalance() {
+        try {
+            synchronized (owned) {
+                long now = System.currentTimeMillis();
+                //TODO 1. 心跳, 清理过期节点, 算出本节点的份额
+                stringRedisTemplate.opsForZSet().add(SECKILL_SHARD_NODES_KEY, nodeId, now);
+                stringRedisTemplate.opsForZSet().removeRangeByScore(SECKILL_SHARD_NODES_KEY, 0, now - leaseTtl);
+                Long nodes = stringRedisTemplate.opsForZSet().zCard(SECKILL_SHARD_NODES_KEY);
+                int share = (int) Math.ceil((double) shards / Math.max(1, nodes == null ? 1 : nodes));
+
+                //TODO 2. 续约, 续约失败说明租约已经过期被别人拿走了
+                for (Iterator<Integer> it = owned.iterator(); it.hasNext(); ) {
+                    Integer shard = it.next();
+                    Long renewed = stringRedisTemplate.execute(RENEW_SCRIPT,
+                            List.of(SECKILL_SHARD_LEASE_PREFIX + shard), nodeId, leaseTtl.toString());
+                    if (renewed == null || renewed == 0) {
+                        log.warn("分片 {} 的租约已经丢失", shard);
+                        container.removeQueueNames(RabbitMQConfig.shardQueueName(shard));
+                        it.remove();
+                    }
+                }
+
+                //TODO 3. 多了释放, 先停止消费再释放租约
+                while (owned.size() > share) {
+                    Integer shard = owned.pollLast();
+                    container.removeQueueNames(RabbitMQConfig.shardQueueName(shard));
+                    stringRedisTemplate.execute(RELEASE_SCRIPT, List.of(SECKILL_SHARD_LEASE_PREFIX + shard), nodeId);
+                    log.info("释放分片 {}", shard);
+                }
+
+                //TODO 4. 少了抢空闲的分片, 从随机位置开始, 避免所有节点争抢同一个分片
+                int start = ThreadLocalRandom.current().nextInt(shards);
+                for (int i = 0; i < shards && owned.size() < share; i++) {
+                    int shard = (start + i) % shards;
+                    if (owned.contains(shard)) {
+                        continue;
+                    }
+                    Boolean acquired = stringRedisTemplate.opsForValue().setIfAbsent(
+                            SECKILL_SHARD_LEASE_PREFIX + shard, nodeId, Duration.ofMillis(leaseTtl));
+                    if (Boolean.TRUE.equals(acquired)) {
+                        owned.add(shard);
+                        container.addQueueNames(RabbitMQConfig.shardQueueName(shard));
+                        log.info("获得分片 {}", shard);
+                    }
+                }
+            }
+        } catch (Exception e) {
+            log.error("分片再平衡失败", e);
+        }
+    }
+}
@@ -0,0 +1,422 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.VoucherOrder;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.*;
+
+/**
+ * <p>
+ * 秒杀库存工具类: 下单资格判断, 库存回滚, 活动激活和清理
+ * </p>
+ * 热点券可以把库存拆成 K 段, 每段的 key 使用不同的 hash tag {voucherId:i}, 集群下分布在不同分片上.
+ * 用户按 userId 哈希固定到自己的分段, 限购只需要检查这一段的下单记录; 本段库存耗尽时再去兄弟分段扣库存
+ *
+ * @author scatteredream
+ */
+@Slf4j
+@Component
+public class SeckillStockClient {
+    //判断下单资格脚本
+    private static final DefaultRedisScript<Long> SECKILL_SCRIPT;
+    //分段库存的下单资格脚本
+    private static final DefaultRedisScript<Long> SECKILL_SEGMENT_SCRIPT;
+    //扣减单个分段库存的脚本
+    private static final DefaultRedisScript<Long> STOCK_DECR_SCRIPT;
+    //批量判断下单资格脚本
+    private static final DefaultRedisScript<List> SECKILL_BATCH_SCRIPT;
+    //回滚库存脚本
+    private static final DefaultRedisScript<Long> ROLLBACK_SCRIPT;
+    //批量回滚脚本
+    private static final DefaultRedisScript<Long> ROLLBACK_BATCH_SCRIPT;
+    //激活秒杀券脚本
+    private static final DefaultRedisScript<Long> ACTIVATE_SCRIPT;
+    //对账读取脚本
+    private static final DefaultRedisScript<List> RECONCILE_READ_SCRIPT;
+    //对账修正脚本
+    private static final DefaultRedisScript<Long> RECONCILE_FIX_SCRIPT;
+
+    static {
+        SECKILL_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SCRIPT.setLocation(new ClassPathResource("secKill.lua"));
+        SECKILL_SCRIPT.setResultType(Long.class);
+        SECKILL_SEGMENT_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_SEGMENT_SCRIPT.setLocation(new ClassPathResource("secKill_segment.lua"));
+        SECKILL_SEGMENT_SCRIPT.setResultType(Long.class);
+        STOCK_DECR_SCRIPT = new DefaultRedisScript<>();
+        STOCK_DECR_SCRIPT.setLocation(new ClassPathResource("stock_decr.lua"));
+        STOCK_DECR_SCRIPT.setResultType(Long.class);
+        SECKILL_BATCH_SCRIPT = new DefaultRedisScript<>();
+        SECKILL_BATCH_SCRIPT.setLocation(new ClassPathResource("secKill_batch.lua"));
+        SECKILL_BATCH_SCRIPT.setResultType(List.class);
+        ROLLBACK_SCRIPT = new DefaultRedisScript<>();
+        ROLLBACK_SCRIPT.setLocation(new ClassPathResource("rollback_secKill.lua"));
+        ROLLBACK_SCRIPT.setResultType(Long.class);
+        ROLLBACK_BATCH_SCRIPT = new DefaultRedisScript<>();
+        ROLLBACK_BATCH_SCRIPT.setLocation(new ClassPathResource("rollback_batch.lua"));
+        ROLLBACK_BATCH_SCRIPT.setResultType(Long.class);
+        ACTIVATE_SCRIPT = new DefaultRedisScript<>();
+        ACTIVATE_SCRIPT.setLocation(new ClassPathResource("seckill_activate.lua"));
+        ACTIVATE_SCRIPT.setResultType(Long.class);
+        RECONCILE_READ_SCRIPT = new DefaultRedisScript<>();
+        RECONCILE_READ_SCRIPT.setLocation(new ClassPathResource("reconcile_read.lua"));
+        RECONCILE_READ_SCRIPT.setResultType(List.class);
+        RECONCILE_FIX_SCRIPT = new DefaultRedisScript<>();
+        RECONCILE_FIX_SCRIPT.setLocation(new ClassPathResource("reconcile_fix.lua"));
+        RECONCILE_FIX_SCRIPT.setResultType(Long.class);
+    }
+
+    // bitmap 编码下每一块覆盖的 userId 个数, 一块最大 8KB
+    private static final int MEMBERSHIP_CHUNK_BITS = 65536;
+
+    // 活动结束后活动信息再保留多久, 这段时间内的请求返回"已结束"
+    private static final long META_RETENTION_MILLIS = Duration.ofDays(1).toMillis();
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    // voucherId -> 分段数, 券创建以后不会变
+    private final Map<Long, Integer> segmentCache = new ConcurrentHashMap<>();
+
+    /**
+     * 判断下单资格, 解决超卖和限购, 检查活动时间窗口
+     *
+     * @return 0:有资格 1:库存不足 2:达到限购数 4:未开始 5:已结束
+     */
+    public int acquire(Long voucherId, Long userId) {
+        return acquire(voucherId, userId, null);
+    }
+
+    /**
+     * 判断下单资格, orderId 不为空时在扣库存的同一个脚本里把订单写入 Stream
+     *
+     * @return 0:有资格 1:库存不足 2:达到限购数 4:未开始 5:已结束
+     */
+    public int acquire(Long voucherId, Long userId, Long orderId) {
+        int segments = segments(voucherId);
+        if (segments <= 1) {
+            String tag = voucherId.toString();
+            Long result = orderId == null
+                    ? stringRedisTemplate.execute(SECKILL_SCRIPT, seckillKeys(tag),
+                            voucherId.toString(), userId.toString())
+                    : stringRedisTemplate.execute(SECKILL_SCRIPT, streamKeys(tag),
+                            voucherId.toString(), userId.toString(), orderId.toString());
+            assert result != null;
+            return result.intValue();
+        }
+        int home = homeSegment(userId, segments);
+        String homeTag = segmentTag(voucherId, home);
+        Long result = orderId == null
+                ? stringRedisTemplate.execute(SECKILL_SEGMENT_SCRIPT, seckillKeys(homeTag), userId.toString())
+                : stringRedisTemplate.execute(SECKILL_SEGMENT_SCRIPT, streamKeys(homeTag),
+                        userId.toString(), orderId.toString(), voucherId.toString());
+        assert result != null;
+        if (result != 3) {
+            return result.intValue();
+        }
+        //TODO 本段库存耗尽, 名额已经占住, 依次到兄弟分段扣库存
+        boolean activating = false;
+        for (int i = 1; i < segments; i++) {
+            String siblingTag = segmentTag(voucherId, (home + i) % segments);
+            String siblingStock = SECKILL_STOCK_PREFIX + "{" + siblingTag + "}";
+            Long r = orderId == null
+                    ? stringRedisTemplate.execute(STOCK_DECR_SCRIPT, List.of(siblingStock))
+                    : stringRedisTemplate.execute(STOCK_DECR_SCRIPT, List.of(siblingStock, streamKey(siblingTag)),
+                            orderId.toString(), userId.toString(), voucherId.toString());
+            if (r != null && r == 0) {
+                return 0;
+            }
+            activating |= r != null && r == 2;
+        }
+        // 所有分段都没有库存了, 释放占住的名额
+        String orderKey = SECKILL_ORDER_PREFIX + "{" + homeTag + "}";
+        if (MEMBERSHIP_BITMAP.equals(stringRedisTemplate.opsForHash().get(SECKILL_META_PREFIX + "{" + homeTag + "}", "membership"))) {
+            stringRedisTemplate.opsForValue().setBit(orderKey + ":b:" + userId / MEMBERSHIP_CHUNK_BITS,
+                    userId % MEMBERSHIP_CHUNK_BITS, false);
+        } else {
+            stringRedisTemplate.opsForHash().increment(orderKey, userId.toString(), -1);
+        }
+        // 有分段的库存还没写入, 不能判定为售罄
+        return activating ? 4 : 1;
+    }
+
+    /**
+     * 一次脚本调用判断同一张(不分段的)券的多个下单请求
+     *
+     * @param userIds 各个请求的用户ID, 可以重复
+     * @return 与 userIds 一一对应的结果 0:有资格 1:库存不足 2:达到限购数 4:未开始 5:已结束
+     */
+    public int[] acquireBatch(Long voucherId, List<Long> userIds) {
+        String[] args = new String[userIds.size()];
+        for (int i = 0; i < userIds.size(); i++) {
+            args[i] = userIds.get(i).toString();
+        }
+        List<?> result = stringRedisTemplate.execute(SECKILL_BATCH_SCRIPT, seckillKeys(voucherId.toString()), (Object[]) args);
+        assert result != null;
+        int[] verdicts = new int[result.size()];
+        for (int i = 0; i < verdicts.length; i++) {
+            verdicts[i] = ((Number) result.get(i)).intValue();
+        }
+        return verdicts;
+    }
+
+    /**
+     * 回滚一个订单的下单资格: 恢复一个库存, 用户已下单数减一
+     * <p>分段模式下库存统一还到用户所在的分段. 回滚过的订单ID记在同一个 slot 的 set 里, 同一订单重复回滚不会多还库存</p>
+     */
+    public void rollback(Long voucherId, Long userId, Long orderId) {
+        int segments = segments(voucherId);
+        String tag = segments <= 1 ? voucherId.toString() : segmentTag(voucherId, homeSegment(userId, segments));
+        stringRedisTemplate.execute(ROLLBACK_SCRIPT, rollbackKeys(tag), userId.toString(), orderId.toString());
+    }
+
+    /**
+     * 批量回滚同一张券的订单: 按用户所在的分段分组, 每个分段一次脚本调用, 按订单幂等
+     *
+     * @return 实际回补的库存数
+     */
+    public long rollbackBatch(Long voucherId, Collection<VoucherOrder> orders) {
+        int segments = segments(voucherId);
+        Map<String, List<String>> argsByTag = new HashMap<>();
+        for (VoucherOrder order : orders) {
+            Long userId = order.getUserId();
+            String tag = segments <= 1 ? voucherId.toString() : segmentTag(voucherId, homeSegment(userId, segments));
+            List<String> args = argsByTag.computeIfAbsent(tag, t -> new ArrayList<>());
+            args.add(order.getId().toString());
+            args.add(userId.toString());
+        }
+        long restored = 0;
+        for (Map.Entry<String, List<String>> entry : argsByTag.entrySet()) {
+            Long result = stringRedisTemplate.execute(ROLLBACK_BATCH_SCRIPT, rollbackKeys(entry.getKey()),
+                    entry.getValue().toArray());
+            restored += result == null ? 0 : result;
+        }
+        return restored;
+    }
+
+    /**
+     * 激活秒杀券: 把活动时间窗口, 限购数, 库存和已有的下单记录预热到 Redis, 之后下单请求不再访问数据库
+     * <p>活动信息先由脚本原子地写入, 已经激活过的券直接返回, 多个节点同时激活不会重复写入库存</p>
+     *
+     * @param membership 下单记录的编码, {@value RedisConstants#MEMBERSHIP_BITMAP} 只能用于每人限购一张的券, 其余情况按 hash 处理
+     * @param ordered    数据库中已有的 userId -> 已下单数, 活动进行中重新激活时用来恢复限购记录
+     * @return 是否由本次调用完成激活
+     */
+    public boolean activate(Long voucherId, int stock, int segments, long begin, long end, int quota,
+                            String membership, Map<Long, Integer> ordered) {
+        segments = Math.max(1, segments);
+        boolean bitmap = quota == 1 && MEMBERSHIP_BITMAP.equals(membership);
+        String[] meta = {String.valueOf(begin), String.valueOf(end), String.valueOf(quota),
+                bitmap ? MEMBERSHIP_BITMAP : MEMBERSHIP_HASH, String.valueOf(end + META_RETENTION_MILLIS)};
+        Long result = stringRedisTemplate.execute(ACTIVATE_SCRIPT,
+                List.of(SECKILL_META_PREFIX + "{" + voucherId + "}", SECKILL_SEGMENT_PREFIX + "{" + voucherId + "}"),
+                meta[0], meta[1], meta[2], meta[3], meta[4], String.valueOf(segments));
+        if (result == null || result == 0) {
+            return false;
+        }
+        //TODO 恢复限购记录, 分段模式下记到用户所在的分段
+        for (int i = 0; i < segments; i++) {
+            deleteOrders(segments == 1 ? voucherId.toString() : segmentTag(voucherId, i));
+        }
+        for (Map.Entry<Long, Integer> entry : ordered.entrySet()) {
+            String tag = segments == 1 ? voucherId.toString() : segmentTag(voucherId, homeSegment(entry.getKey(), segments));
+            String orderKey = SECKILL_ORDER_PREFIX + "{" + tag + "}";
+            if (bitmap) {
+                long userId = entry.getKey();
+                stringRedisTemplate.opsForValue().setBit(orderKey + ":b:" + userId / MEMBERSHIP_CHUNK_BITS,
+                        userId % MEMBERSHIP_CHUNK_BITS, true);
+                stringRedisTemplate.opsForSet().add(orderKey + ":b", String.valueOf(userId / MEMBERSHIP_CHUNK_BITS));
+            } else {
+                stringRedisTemplate.opsForHash().put(orderKey, entry.getKey().toString(), entry.getValue().toString());
+            }
+        }
+        //TODO 分段脚本只能访问自己 slot 的 key, 活动信息每一段写一份
+        for (int i = 0; segments > 1 && i < segments; i++) {
+            String metaKey = SECKILL_META_PREFIX + "{" + segmentTag(voucherId, i) + "}";
+            stringRedisTemplate.opsForHash().putAll(metaKey,
+                    Map.of("begin", meta[0], "end", meta[1], "quota", meta[2], "membership", meta[3]));
+            stringRedisTemplate.expireAt(metaKey, Instant.ofEpochMilli(end + META_RETENTION_MILLIS));
+        }
+        // 库存最后写入, 在此之前脚本看不到库存 key, 返回未开始, 不会绕过刚恢复的限购记录, 也不会误判售罄
+        initStock(voucherId, stock, segments);
+        return true;
+    }
+
+    /**
+     * 活动结束后清理库存和下单记录, 活动信息保留到过期, 这段时间内的请求返回"已结束"
+     *
+     * @return 是否由本次调用完成清理
+     */
+    public boolean deactivate(Long voucherId) {
+        String metaKey = SECKILL_META_PREFIX + "{" + voucherId + "}";
+        if (!Boolean.TRUE.equals(stringRedisTemplate.opsForHash().putIfAbsent(metaKey, "closed", "1"))) {
+            return false;
+        }
+        int segments = segments(voucherId);
+        // 集群下这些 key 不在同一个 slot, 逐个删除
+        for (int i = 0; i < segments; i++) {
+            String tag = segments == 1 ? voucherId.toString() : segmentTag(voucherId, i);
+            stringRedisTemplate.delete(SECKILL_STOCK_PREFIX + "{" + tag + "}");
+            stringRedisTemplate.delete(SECKILL_ROLLBACK_PREFIX + "{" + tag + "}");
+            deleteOrders(tag);
+        }
+        return true;
+    }
+
+    /**
+     * 删除一个分段的下单记录, 两种编码都清理: hash 本身, 以及 bitmap 的各个块和块索引
+     */
+    private void deleteOrders(String tag) {
+        String orderKey = SECKILL_ORDER_PREFIX + "{" + tag + "}";
+        Set<String> chunks = stringRedisTemplate.opsForSet().members(orderKey + ":b");
+        List<String> keys = new ArrayList<>();
+        keys.add(orderKey);
+        keys.add(orderKey + ":b");
+        if (chunks != null) {
+            chunks.forEach(chunk -> keys.add(orderKey + ":b:" + chunk));
+        }
+        // 同一个 hash tag, 集群下也在同一个 slot
+        stringRedisTemplate.delete(keys);
+    }
+
+    /**
+     * 读取激活时写入的活动信息 begin end (毫秒时间戳) quota membership, 没有激活返回空 map
+     */
+    public Map<Object, Object> meta(Long voucherId) {
+        return stringRedisTemplate.opsForHash().entries(SECKILL_META_PREFIX + "{" + voucherId + "}");
+    }
+
+    /**
+     * 一个分段(不分段时就是券本身)某一时刻的库存和已占用的下单数
+     */
+    public record StockSnapshot(String tag, long stock, long reserved) {
+    }
+
+    /**
+     * 对账用: 逐个分段原子地读出库存和已占用的下单数
+     */
+    public List<StockSnapshot> snapshot(Long voucherId) {
+        int segments = segments(voucherId);
+        List<StockSnapshot> snapshots = new ArrayList<>(segments);
+        for (int i = 0; i < segments; i++) {
+            String tag = segments == 1 ? voucherId.toString() : segmentTag(voucherId, i);
+            List<?> result = stringRedisTemplate.execute(RECONCILE_READ_SCRIPT, seckillKeys(tag));
+            assert result != null;
+            snapshots.add(new StockSnapshot(tag, ((Number) result.get(0)).longValue(), ((Number) result.get(1)).longValue()));
+        }
+        return snapshots;
+    }
+
+    /**
+     * 对账修正: 分段库存仍然等于 expected 时才调整 delta, 结果不小于 0
+     *
+     * @return 是否修正成功
+     */
+    public boolean adjustStock(String tag, long expected, long delta) {
+        Long result = stringRedisTemplate.execute(RECONCILE_FIX_SCRIPT, List.of(SECKILL_STOCK_PREFIX + "{" + tag + "}"),
+                String.valueOf(expected), String.valueOf(delta));
+        return result != null && result == 1;
+    }
+
+    /**
+     * 把库存写入 Redis, segments > 1 时把库存均分到各个分段
+     */
+    private void initStock(Long voucherId, int stock, int segments) {
+        // 分段数已经由激活脚本和活动信息一起写入
+        segmentCache.put(voucherId, segments);
+        if (segments == 1) {
+            stringRedisTemplate.opsForValue().set(SECKILL_STOCK_PREFIX + "{" + voucherId + "}", String.valueOf(stock));
+            return;
+        }
+        // 余数分给前几段
+        for (int i = 0; i < segments; i++) {
+            int segmentStock = stock / segments + (i < stock % segments ? 1 : 0);
+            stringRedisTemplate.opsForValue().set(SECKILL_STOCK_PREFIX + "{" + segmentTag(voucherId, i) + "}",
+                    String.valueOf(segmentStock));
+        }
+    }
+
+    /**
+     * 查询券的分段数, 没有记录(还没激活)时按不分段处理但不缓存, 激活以后再读到真正的分段数
+     */
+    public int segments(Long voucherId) {
+        Integer cached = segmentCache.get(voucherId);
+        if (cached != null) {
+            return cached;
+        }
+        String value = stringRedisTemplate.opsForValue().get(SECKILL_SEGMENT_PREFIX + "{" + voucherId + "}");
+        if (value == null) {
+            return 1;
+        }
+        int segments = Integer.parseInt(value);
+        segmentCache.put(voucherId, segments);
+        return segments;
+    }
+
+    /**
+     * 秒杀脚本的 KEYS: 库存 订单 活动信息, 都是带 hash tag 的完整 key, 集群下 EVAL 按它们路由到所在的 slot
+     */
+    private static List<String> seckillKeys(String tag) {
+        String hashTag = "{" + tag + "}";
+        return List.of(SECKILL_STOCK_PREFIX + hashTag, SECKILL_ORDER_PREFIX + hashTag, SECKILL_META_PREFIX + hashTag);
+    }
+
+    /**
+     * stream 模式多一个订单 Stream
+     */
+    private static List<String> streamKeys(String tag) {
+        List<String> keys = new ArrayList<>(seckillKeys(tag));
+        keys.add(streamKey(tag));
+        return keys;
+    }
+
+    /**
+     * stream 模式下一个分段(不分段时就是券本身)的订单 Stream, 和该分段的库存带同一个 hash tag,
+     * 集群下脚本扣库存和 XADD 在同一个 slot
+     */
+    public static String streamKey(String tag) {
+        return SECKILL_STREAM_KEY + ":{" + tag + "}";
+    }
+
+    /**
+     * 一张券所有分段的 hash tag, 不分段时只有券ID本身
+     */
+    public static List<String> tags(Long voucherId, int segments) {
+        if (segments <= 1) {
+            return List.of(voucherId.toString());
+        }
+        List<String> tags = new ArrayList<>(segments);
+        for (int i = 0; i < segments; i++) {
+            tags.add(segmentTag(voucherId, i));
+        }
+        return tags;
+    }
+
+    /**
+     * 回滚脚本多一个已回滚订单ID set
+     */
+    private static List<String> rollbackKeys(String tag) {
+        List<String> keys = new ArrayList<>(seckillKeys(tag));
+        keys.add(SECKILL_ROLLBACK_PREFIX + "{" + tag + "}");
+        return keys;
+    }
+
+    private static String segmentTag(Long voucherId, int segment) {
+        return voucherId + ":" + segment;
+    }
+
+    private static int homeSegment(Long userId, int segments) {
+        // 打散连续的 userId
+        return Math.floorMod(Long.hashCode(userId * 0x9E3779B97F4A7C15L), segments);
+    }
+}
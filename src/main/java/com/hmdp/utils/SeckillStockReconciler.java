@@ -0,0 +1,256 @@
+package com.hmdp.utils;
+
+import com.baomidou.mybatisplus.core.conditions.query.QueryWrapper;
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_RECONCILE_LEASE_KEY;
+import static com.hmdp.utils.RedisConstants.SECKILL_RECONCILE_STATE_KEY;
+
+/**
+ * <p>
+ * Redis 库存和 MySQL 库存的增量对账
+ * </p>
+ * 对每张进行中的券检查 Redis库存 + 在途订单 == 数据库库存, 其中 在途订单 = Redis已占用下单数 - (已确认订单 - 已取消订单) - 已核销的丢失订单.
+ * 已确认订单数从订单ID水位线往后增量统计, 水位线取 settle 秒之前生成的最小ID, 不会重扫 tb_voucher_order.
+ * 观察值连续 settle 秒不变时: 在途订单视为丢失(发布失败, 节点宕机)并核销, 剩余的差额修正到 Redis 库存.
+ * 核销过的订单之后又落库时在途订单会变成负数, 此时撤销相应数量的核销, 差额(核销时补回的库存)下一次修正时扣回.
+ * 通过 Redis 租约保证同一时刻只有一个节点对账, 水位线和统计值存在 Redis 中, 换节点后继续增量对账
+ *
+ * @author scatteredream
+ */
+@Slf4j
+@Component
+public class SeckillStockReconciler {
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+
+    static {
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("lease_renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+    }
+
+    @Value("${custom.seckill.reconcileInterval}")
+    private Long interval;
+
+    @Value("${custom.seckill.reconcileSettle}")
+    private Long settle;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    @Lazy
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private SeckillStockClient seckillStockClient;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    private final String nodeId = ManagementFactory.getRuntimeMXBean().getName() + ":" + UUID.randomUUID();
+
+    // voucherId -> 上一次的观察值, 用来判断是否已经稳定
+    private final Map<Long, Observation> observations = new ConcurrentHashMap<>();
+
+    private final AtomicLong drift = new AtomicLong();
+
+    private final AtomicLong inflight = new AtomicLong();
+
+    private Counter corrections;
+
+    private Counter writtenOff;
+
+    private ScheduledExecutorService scheduler;
+
+    private record Observation(long redisStock, long reserved, long confirmed, long dbStock, long since) {
+        boolean sameAs(Observation o) {
+            return redisStock == o.redisStock && reserved == o.reserved
+                    && confirmed == o.confirmed && dbStock == o.dbStock;
+        }
+    }
+
+    @PostConstruct
+    public void init() {
+        Gauge.builder("seckill.reconcile.drift", drift, AtomicLong::get)
+                .description("上一轮对账各券库存差额绝对值之和").register(meterRegistry);
+        Gauge.builder("seckill.reconcile.inflight", inflight, AtomicLong::get)
+                .description("上一轮对账各券在途订单数之和").register(meterRegistry);
+        corrections = Counter.builder("seckill.reconcile.corrections")
+                .description("修正到 Redis 的库存数").register(meterRegistry);
+        writtenOff = Counter.builder("seckill.reconcile.written.off")
+                .description("核销的丢失订单数").register(meterRegistry);
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "seckill-reconciler"));
+        scheduler.scheduleWithFixedDelay(this::run, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        scheduler.shutdownNow();
+    }
+
+    private void run() {
+        try {
+            if (!holdLease()) {
+                // 租约在别的节点, 本地的观察值作废
+                observations.clear();
+                return;
+            }
+            reconcile();
+        } catch (Exception e) {
+            log.error("库存对账失败", e);
+        }
+    }
+
+    private boolean holdLease() {
+        long ttl = 3 * interval;
+        Long renewed = stringRedisTemplate.execute(RENEW_SCRIPT, List.of(SECKILL_RECONCILE_LEASE_KEY),
+                nodeId, String.valueOf(ttl));
+        if (renewed != null && renewed == 1) {
+            return true;
+        }
+        return Boolean.TRUE.equals(stringRedisTemplate.opsForValue()
+                .setIfAbsent(SECKILL_RECONCILE_LEASE_KEY, nodeId, Duration.ofMillis(ttl)));
+    }
+
+    private void reconcile() {
+        LocalDateTime now = LocalDateTime.now();
+        long nowMillis = System.currentTimeMillis();
+        Map<Object, Object> state = stringRedisTemplate.opsForHash().entries(SECKILL_RECONCILE_STATE_KEY);
+        long watermark = Long.parseLong((String) state.getOrDefault("watermark", "0"));
+        long upper = Math.max(watermark, IIdWorker.minIdAt(now.minusSeconds(settle)));
+
+        //TODO 1. 增量统计水位线之后的订单: 水位线到 upper 之间的已经稳定, 计入累计值; upper 之后的只用于本轮
+        Map<Long, Long> tail = new HashMap<>();
+        Map<String, String> settled = new HashMap<>();
+        List<Map<String, Object>> rows = voucherOrderService.listMaps(new QueryWrapper<VoucherOrder>()
+                .select("voucher_id", "count(*) AS cnt", "SUM(id < " + upper + ") AS settled")
+                .ge("id", watermark)
+                .groupBy("voucher_id"));
+        for (Map<String, Object> row : rows) {
+            Long voucherId = ((Number) row.get("voucher_id")).longValue();
+            long count = ((Number) row.get("cnt")).longValue();
+            long settledCount = ((Number) row.get("settled")).longValue();
+            tail.put(voucherId, count - settledCount);
+            if (settledCount > 0) {
+                long confirmed = Long.parseLong((String) state.getOrDefault("confirmed:" + voucherId, "0"));
+                settled.put("confirmed:" + voucherId, String.valueOf(confirmed + settledCount));
+            }
+        }
+        settled.put("watermark", String.valueOf(upper));
+        stringRedisTemplate.opsForHash().putAll(SECKILL_RECONCILE_STATE_KEY, settled);
+        state.putAll(settled);
+
+        //TODO 2. 逐张券对账
+        long totalDrift = 0, totalInflight = 0;
+        Set<Long> active = new HashSet<>();
+        for (SeckillVoucher voucher : seckillVoucherService.query().gt("end_time", now).list()) {
+            Long voucherId = voucher.getVoucherId();
+            Map<Object, Object> meta = seckillStockClient.meta(voucherId);
+            if (meta.isEmpty() || meta.containsKey("closed")) {
+                continue;
+            }
+            active.add(voucherId);
+            List<SeckillStockClient.StockSnapshot> snapshots = seckillStockClient.snapshot(voucherId);
+            long redisStock = snapshots.stream().mapToLong(SeckillStockClient.StockSnapshot::stock).sum();
+            long reserved = snapshots.stream().mapToLong(SeckillStockClient.StockSnapshot::reserved).sum();
+            long confirmed = Long.parseLong((String) state.getOrDefault("confirmed:" + voucherId, "0"))
+                    + tail.getOrDefault(voucherId, 0L);
+            // 超时取消的订单回补了两边的库存, 不再算作已确认
+            confirmed -= Long.parseLong((String) state.getOrDefault("cancelled:" + voucherId, "0"));
+            long abandoned = Long.parseLong((String) state.getOrDefault("abandoned:" + voucherId, "0"));
+            long dbStock = voucher.getStock();
+            long pending = reserved - confirmed - abandoned;
+            if (pending < 0 && abandoned > 0) {
+                //TODO 核销过的订单后来又落库了(只是慢, 没有丢), 撤销对应的核销, 否则在途数变成负数, 掩盖之后的差额
+                long reversed = Math.min(-pending, abandoned);
+                stringRedisTemplate.opsForHash().increment(SECKILL_RECONCILE_STATE_KEY, "abandoned:" + voucherId, -reversed);
+                log.warn("券 {} 有 {} 个已核销的订单落库, 撤销核销", voucherId, reversed);
+                pending += reversed;
+            }
+            long diff = redisStock + pending - dbStock;
+
+            Observation current = new Observation(redisStock, reserved, confirmed, dbStock, nowMillis);
+            Observation last = observations.get(voucherId);
+            if (last != null && last.sameAs(current)) {
+                current = last;
+            }
+            observations.put(voucherId, current);
+            if (nowMillis - current.since() >= settle * 1000) {
+                //TODO 3. 稳定了 settle 秒还在途的订单已经丢失, 核销掉
+                if (pending > 0) {
+                    stringRedisTemplate.opsForHash().increment(SECKILL_RECONCILE_STATE_KEY, "abandoned:" + voucherId, pending);
+                    writtenOff.increment(pending);
+                    log.warn("券 {} 有 {} 个订单在途超过 {} 秒, 核销", voucherId, pending, settle);
+                    diff -= pending;
+                    pending = 0;
+                }
+                //TODO 4. 差额修正到 Redis 库存
+                if (diff != 0 && correct(snapshots, -diff)) {
+                    corrections.increment(Math.abs(diff));
+                    log.warn("券 {} Redis 库存 {} 数据库库存 {}, 修正 {}", voucherId, redisStock, dbStock, -diff);
+                    observations.remove(voucherId);
+                }
+            }
+            totalDrift += Math.abs(diff);
+            totalInflight += pending;
+        }
+        observations.keySet().retainAll(active);
+        drift.set(totalDrift);
+        inflight.set(totalInflight);
+    }
+
+    /**
+     * 把 delta 分摊到各个分段: 补库存全部加到第一段, 扣库存依次从有库存的分段扣
+     */
+    private boolean correct(List<SeckillStockClient.StockSnapshot> snapshots, long delta) {
+        if (delta > 0) {
+            SeckillStockClient.StockSnapshot first = snapshots.getFirst();
+            return seckillStockClient.adjustStock(first.tag(), first.stock(), delta);
+        }
+        long remaining = -delta;
+        for (SeckillStockClient.StockSnapshot snapshot : snapshots) {
+            if (remaining == 0) {
+                break;
+            }
+            long take = Math.min(remaining, snapshot.stock());
+            if (take > 0) {
+                if (!seckillStockClient.adjustStock(snapshot.tag(), snapshot.stock(), -take)) {
+                    // 期间有新的下单, 下一轮重新对账
+                    return false;
+                }
+                remaining -= take;
+            }
+        }
+        return true;
+    }
+}
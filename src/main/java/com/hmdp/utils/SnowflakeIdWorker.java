@@ -0,0 +1,230 @@
+package com.hmdp.utils;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.hmdp.utils.RedisConstants.ID_WORKER_LAST_KEY;
+import static com.hmdp.utils.RedisConstants.ID_WORKER_LEASE_PREFIX;
+
+/**
+ * <p>
+ * 本地发号的全局ID生成器: 秒数(32 位) + workerId(10 位) + 序列号(22 位)
+ * </p>
+ * 高 32 位与 {@link RedisIdWorker} 相同, 按时间分桶和截取ID范围的代码不受影响. workerId 启动时从 Redis 租用,
+ * 心跳续约, 发号本身只有一次 CAS, 不访问 Redis, Redis 短暂不可用时租约有效期内照常发号.
+ * 秒数和序列号打包在一个 AtomicLong 里作为逻辑时钟, 只增不减: 时钟回拨或者一秒内序列号用完时
+ * 继续在逻辑时钟上递增(借用未来的秒), 超前真实时钟 maxClockBackward 秒以上才拒绝发号.
+ * 每次租到或续约之前先在 Redis 记下本次租约内最多可能用到的秒数(租约截止时刻 + maxClockBackward),
+ * 发号不超过记录的秒数, 下一个租到这个 workerId 的节点从它之后开始, 不会和借用未来秒数的前任重复.
+ * 正常退出时把记录改成实际用到的秒数; 异常退出的前任只留下预留的上限, 租用时优先挑选上限没有超前的 workerId,
+ * 避免接手后逻辑时钟超前 maxClockBackward 而拒绝发号
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "custom.id.worker", havingValue = "snowflake")
+public class SnowflakeIdWorker implements IIdWorker {
+    private static final int WORKER_BITS = 10;
+    private static final int SEQUENCE_BITS = COUNT_BITS - WORKER_BITS;
+    private static final long SEQUENCE_MASK = (1L << SEQUENCE_BITS) - 1;
+    private static final int MAX_WORKERS = 1 << WORKER_BITS;
+    private static final DefaultRedisScript<Long> RENEW_SCRIPT;
+    private static final DefaultRedisScript<Long> RELEASE_SCRIPT;
+
+    static {
+        RENEW_SCRIPT = new DefaultRedisScript<>();
+        RENEW_SCRIPT.setLocation(new ClassPathResource("lease_renew.lua"));
+        RENEW_SCRIPT.setResultType(Long.class);
+        RELEASE_SCRIPT = new DefaultRedisScript<>();
+        RELEASE_SCRIPT.setLocation(new ClassPathResource("unlock.lua"));
+        RELEASE_SCRIPT.setResultType(Long.class);
+    }
+
+    @Value("${custom.id.workerLeaseTtl}")
+    private Long leaseTtl;
+
+    @Value("${custom.id.maxClockBackward}")
+    private Long maxBackward;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    private final String nodeId = ManagementFactory.getRuntimeMXBean().getName() + ":" + UUID.randomUUID();
+
+    // 逻辑时钟: 距 BEGIN_TIMESTAMP 的秒数 << SEQUENCE_BITS | 序列号
+    private final AtomicLong clock = new AtomicLong();
+
+    // -1 表示没有租到 workerId
+    private volatile int workerId = -1;
+
+    // 租约在这个时刻(毫秒)之前有效, 过了还没续约成功就停止发号
+    private volatile long leaseValidUntil;
+
+    // 已经记录到 Redis 的秒数上限, 逻辑时钟不能超过它
+    private volatile long reservedSecond;
+
+    // 本地时间相对 UTC 的偏移秒数, 与 RedisIdWorker 一样用本地时间计算秒数
+    private volatile long offsetSeconds;
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void init() {
+        refreshOffset();
+        if (!acquire()) {
+            throw new IllegalStateException("没有空闲的 workerId");
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, "id-worker-heartbeat"));
+        // 续约周期取租约有效期的 1/3, 两次续约失败之前租约不会过期
+        long period = leaseTtl / 3;
+        scheduler.scheduleWithFixedDelay(this::heartbeat, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void destroy() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        int id = workerId;
+        if (id >= 0) {
+            workerId = -1;
+            // 冻结逻辑时钟, 之后的发号都会失败; 记下实际用到的秒数, 下一个持有者不用从预留的上限开始
+            long issued = clock.getAndSet(Long.MAX_VALUE) >>> SEQUENCE_BITS;
+            stringRedisTemplate.opsForHash().put(ID_WORKER_LAST_KEY, String.valueOf(id), String.valueOf(issued));
+            stringRedisTemplate.execute(RELEASE_SCRIPT, List.of(ID_WORKER_LEASE_PREFIX + id), nodeId);
+        }
+    }
+
+    /**
+     * 无锁发号, keyPrefix 不参与, ID 在所有前缀之间都唯一
+     */
+    @Override
+    public long nextId(String keyPrefix) {
+        int id = workerId;
+        if (id < 0 || System.currentTimeMillis() >= leaseValidUntil) {
+            throw new IllegalStateException("workerId 租约已失效, 暂停发号");
+        }
+        long now = System.currentTimeMillis() / 1000 + offsetSeconds - BEGIN_TIMESTAMP;
+        while (true) {
+            long current = clock.get();
+            // 真实时钟走到前面就用真实时钟, 否则在逻辑时钟上加一, 序列号用完时自然进位到下一秒
+            long next = current >>> SEQUENCE_BITS < now ? now << SEQUENCE_BITS : current + 1;
+            if ((next >>> SEQUENCE_BITS) - now > maxBackward) {
+                throw new IllegalStateException("时钟回拨或发号过快, 逻辑时钟超前 " + ((next >>> SEQUENCE_BITS) - now) + " 秒");
+            }
+            if ((next >>> SEQUENCE_BITS) > reservedSecond) {
+                throw new IllegalStateException("逻辑时钟超过记录的秒数上限, 等待续约");
+            }
+            if (clock.compareAndSet(current, next)) {
+                return (next >>> SEQUENCE_BITS) << COUNT_BITS | (long) id << SEQUENCE_BITS | next & SEQUENCE_MASK;
+            }
+        }
+    }
+
+    /**
+     * 当前持有的 workerId, 没有租到返回 -1
+     */
+    public int workerId() {
+        return workerId;
+    }
+
+    /**
+     * 先找前任记录的秒数没有超前的 workerId, 都找不到再接受超前的, 等真实时钟追上之后才能发号
+     */
+    private boolean acquire() {
+        return acquire(true) || acquire(false);
+    }
+
+    /**
+     * 从随机位置开始依次尝试租用 workerId, 避免节点同时启动时都去抢 0 号
+     *
+     * @param skipAhead 是否跳过接手后逻辑时钟会超前 maxClockBackward 的 workerId(前任异常退出, 只留下预留的上限)
+     */
+    private boolean acquire(boolean skipAhead) {
+        int start = ThreadLocalRandom.current().nextInt(MAX_WORKERS);
+        long now = System.currentTimeMillis() / 1000 + offsetSeconds - BEGIN_TIMESTAMP;
+        for (int i = 0; i < MAX_WORKERS; i++) {
+            int id = (start + i) % MAX_WORKERS;
+            if (skipAhead) {
+                Object last = stringRedisTemplate.opsForHash().get(ID_WORKER_LAST_KEY, String.valueOf(id));
+                if (last != null && Long.parseLong(last.toString()) + 1 - now > maxBackward) {
+                    continue;
+                }
+            }
+            long begin = System.currentTimeMillis();
+            if (Boolean.TRUE.equals(stringRedisTemplate.opsForValue()
+                    .setIfAbsent(ID_WORKER_LEASE_PREFIX + id, nodeId, Duration.ofMillis(leaseTtl)))) {
+                //TODO 上一个持有者最后用到的秒数之后再开始, 逻辑时钟只增不减
+                Object last = stringRedisTemplate.opsForHash().get(ID_WORKER_LAST_KEY, String.valueOf(id));
+                if (last != null) {
+                    long floor = (Long.parseLong(last.toString()) + 1) << SEQUENCE_BITS;
+                    clock.accumulateAndGet(floor, Math::max);
+                }
+                reserve(id, begin + leaseTtl);
+                leaseValidUntil = begin + leaseTtl;
+                workerId = id;
+                log.info("租到 workerId {}", id);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void heartbeat() {
+        try {
+            refreshOffset();
+            int id = workerId;
+            long begin = System.currentTimeMillis();
+            if (id >= 0) {
+                Long renewed = stringRedisTemplate.execute(RENEW_SCRIPT, List.of(ID_WORKER_LEASE_PREFIX + id),
+                        nodeId, leaseTtl.toString());
+                if (renewed != null && renewed == 1) {
+                    // 先记下新的上限再延长本地有效期, 记录失败时按旧的有效期停止发号
+                    reserve(id, begin + leaseTtl);
+                    leaseValidUntil = begin + leaseTtl;
+                    return;
+                }
+                // 租约已经被别人拿走, 立即停止发号, 重新租一个
+                log.warn("workerId {} 租约丢失, 重新租用", id);
+                workerId = -1;
+            }
+            acquire();
+        } catch (Exception e) {
+            // Redis 不可用时租约有效期内继续发号, 下次心跳再续约
+            log.error("workerId 续约失败", e);
+        }
+    }
+
+    /**
+     * 记录租约到 validUntil 为止最多可能用到的秒数: 截止时刻的秒数 + 允许超前的秒数
+     */
+    private void reserve(int id, long validUntil) {
+        long ceiling = Math.max(validUntil / 1000 + offsetSeconds - BEGIN_TIMESTAMP + maxBackward,
+                clock.get() >>> SEQUENCE_BITS);
+        stringRedisTemplate.opsForHash().put(ID_WORKER_LAST_KEY, String.valueOf(id), String.valueOf(ceiling));
+        reservedSecond = ceiling;
+    }
+
+    private void refreshOffset() {
+        offsetSeconds = ZoneId.systemDefault().getRules().getOffset(Instant.now()).getTotalSeconds();
+    }
+}
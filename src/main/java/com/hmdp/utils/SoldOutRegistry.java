@@ -0,0 +1,89 @@
+package com.hmdp.utils;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.data.redis.connection.Message;
+import org.springframework.data.redis.connection.MessageListener;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.listener.ChannelTopic;
+import org.springframework.data.redis.listener.RedisMessageListenerContainer;
+import org.springframework.stereotype.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static com.hmdp.utils.RedisConstants.SECKILL_RESTOCK_CHANNEL;
+import static com.hmdp.utils.RedisConstants.SECKILL_SOLD_OUT_CHANNEL;
+
+/**
+ * <p>
+ * 本地售罄标记: 秒杀券抢完以后, 后续请求直接在 JVM 内拒绝, 不再访问 Redis
+ * </p>
+ * 标记通过 Redis 发布订阅同步到所有节点, 库存回补时清除.
+ * pub/sub 不保证送达, 所以标记超过 RECHECK_MILLIS 以后放一个请求去 Redis 重新确认
+ *
+ * @author scatteredream
+ */
+@Slf4j
+@Component
+public class SoldOutRegistry implements MessageListener {
+
+    private static final long RECHECK_MILLIS = 10_000L;
+
+    // voucherId -> 标记售罄的时间
+    private final ConcurrentHashMap<Long, Long> soldOut = new ConcurrentHashMap<>();
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    private RedisMessageListenerContainer redisMessageListenerContainer;
+
+    @PostConstruct
+    public void init() {
+        redisMessageListenerContainer.addMessageListener(this, ChannelTopic.of(SECKILL_SOLD_OUT_CHANNEL));
+        redisMessageListenerContainer.addMessageListener(this, ChannelTopic.of(SECKILL_RESTOCK_CHANNEL));
+    }
+
+    public boolean isSoldOut(Long voucherId) {
+        Long markedAt = soldOut.get(voucherId);
+        if (markedAt == null) {
+            return false;
+        }
+        if (System.currentTimeMillis() - markedAt < RECHECK_MILLIS) {
+            return true;
+        }
+        // 过了复查时间, 只放行抢到删除权的那一个请求
+        return !soldOut.remove(voucherId, markedAt);
+    }
+
+    /**
+     * 脚本第一次返回库存不足时调用, 本节点第一次标记才广播
+     */
+    public void markSoldOut(Long voucherId) {
+        if (soldOut.put(voucherId, System.currentTimeMillis()) == null) {
+            stringRedisTemplate.convertAndSend(SECKILL_SOLD_OUT_CHANNEL, voucherId.toString());
+        }
+    }
+
+    /**
+     * 库存回补(新建/补货/回滚)时调用, 广播给所有节点清除标记
+     */
+    public void markAvailable(Long voucherId) {
+        soldOut.remove(voucherId);
+        stringRedisTemplate.convertAndSend(SECKILL_RESTOCK_CHANNEL, voucherId.toString());
+    }
+
+    @Override
+    public void onMessage(Message message, byte[] pattern) {
+        String channel = new String(message.getChannel(), StandardCharsets.UTF_8);
+        Long voucherId = Long.valueOf(new String(message.getBody(), StandardCharsets.UTF_8));
+        if (SECKILL_SOLD_OUT_CHANNEL.equals(channel)) {
+            soldOut.putIfAbsent(voucherId, System.currentTimeMillis());
+        } else {
+            soldOut.remove(voucherId);
+        }
+        log.debug("voucher [{}] {}", voucherId, channel);
+    }
+}
@@ -0,0 +1,133 @@
+package com.hmdp.utils.StatusStoreImpl;
+
+import com.hmdp.utils.IOrderStatusStore;
+import com.hmdp.utils.OrderStatus;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+/**
+ * <p>
+ * 单节点部署用的订单状态: long -> byte 的原始类型哈希表, 没有装箱, 一个订单约 9 字节
+ * </p>
+ * 按订单ID分成若干段减少锁竞争, 每段保留新旧两代表, 每过半个保留时间(或者新表写满)
+ * 旧表整体丢弃、新表变旧表, 条目最多存活一个保留时间, 内存上限是 2 * maxEntries
+ */
+@Component
+@ConditionalOnProperty(name = "custom.seckill.statusStore", havingValue = "local")
+public class LocalOrderStatusStore implements IOrderStatusStore {
+    private static final int STRIPES = 16;
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    public LocalOrderStatusStore(@Value("${custom.seckill.statusTtl}") Long statusTtl,
+                                 @Value("${custom.seckill.statusMaxEntries}") Integer maxEntries) {
+        long rotateMillis = statusTtl * 1000 / 2;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe(rotateMillis, Math.max(16, maxEntries / STRIPES));
+        }
+    }
+
+    @Override
+    public void put(long orderId, OrderStatus status) {
+        stripeOf(orderId).put(orderId, status.getCode(), status == OrderStatus.PENDING);
+    }
+
+    @Override
+    public OrderStatus get(long orderId) {
+        int code = stripeOf(orderId).get(orderId);
+        return code < 0 ? null : OrderStatus.of(code);
+    }
+
+    private Stripe stripeOf(long orderId) {
+        return stripes[(int) (mix(orderId) >>> 60) & (STRIPES - 1)];
+    }
+
+    private static long mix(long key) {
+        key *= 0x9E3779B97F4A7C15L;
+        return key ^ (key >>> 32);
+    }
+
+    private static final class Stripe {
+        private final long rotateMillis;
+        private final int maxEntries;
+        private LongByteMap current;
+        private LongByteMap previous;
+        private long rotatedAt = System.currentTimeMillis();
+
+        Stripe(long rotateMillis, int maxEntries) {
+            this.rotateMillis = rotateMillis;
+            this.maxEntries = maxEntries;
+            this.current = new LongByteMap(maxEntries);
+            this.previous = new LongByteMap(16);
+        }
+
+        synchronized void put(long key, byte value, boolean onlyIfAbsent) {
+            rotateIfNeeded();
+            if (onlyIfAbsent && (current.get(key) >= 0 || previous.get(key) >= 0)) {
+                return;
+            }
+            current.put(key, value);
+        }
+
+        synchronized int get(long key) {
+            rotateIfNeeded();
+            int value = current.get(key);
+            return value >= 0 ? value : previous.get(key);
+        }
+
+        private void rotateIfNeeded() {
+            long now = System.currentTimeMillis();
+            if (now - rotatedAt >= rotateMillis || current.size() >= maxEntries) {
+                previous = current;
+                current = new LongByteMap(maxEntries);
+                rotatedAt = now;
+            }
+        }
+    }
+
+    /**
+     * 开放寻址, 线性探测. key 为 0 表示空槽(订单ID不会是 0), 只增不删
+     */
+    private static final class LongByteMap {
+        private final long[] keys;
+        private final byte[] values;
+        private final int mask;
+        private int size;
+
+        LongByteMap(int expected) {
+            // 负载因子不超过 0.5
+            int capacity = Integer.highestOneBit(Math.max(2, expected) * 2 - 1) << 1;
+            keys = new long[capacity];
+            values = new byte[capacity];
+            mask = capacity - 1;
+        }
+
+        void put(long key, byte value) {
+            int i = (int) mix(key) & mask;
+            while (keys[i] != 0 && keys[i] != key) {
+                i = (i + 1) & mask;
+            }
+            if (keys[i] == 0) {
+                keys[i] = key;
+                size++;
+            }
+            values[i] = value;
+        }
+
+        int get(long key) {
+            int i = (int) mix(key) & mask;
+            while (keys[i] != 0) {
+                if (keys[i] == key) {
+                    return values[i];
+                }
+                i = (i + 1) & mask;
+            }
+            return -1;
+        }
+
+        int size() {
+            return size;
+        }
+    }
+}
@@ -0,0 +1,67 @@
+package com.hmdp.utils.StatusStoreImpl;
+
+import com.hmdp.utils.IIdWorker;
+import com.hmdp.utils.IOrderStatusStore;
+import com.hmdp.utils.OrderStatus;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.data.redis.connection.StringRedisConnection;
+import org.springframework.data.redis.core.RedisCallback;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDateTime;
+
+import static com.hmdp.utils.RedisConstants.ORDER_STATUS_KEY;
+
+/**
+ * <p>
+ * 集群共享的订单状态: 每分钟一个 hash, field 是订单ID, value 是一字节状态码
+ * </p>
+ * 订单ID高位就是下单时间, 查询时直接算出所在的 hash, 不需要额外索引.
+ * 整个 hash 到期一起删除, 不用给每个订单单独设置过期时间
+ */
+@Component
+@ConditionalOnProperty(name = "custom.seckill.statusStore", havingValue = "redis", matchIfMissing = true)
+public class RedisOrderStatusStore implements IOrderStatusStore {
+    private static final long BUCKET_SECONDS = 60;
+
+    private final StringRedisTemplate stringRedisTemplate;
+
+    @Value("${custom.seckill.statusTtl}")
+    private Long statusTtl;
+
+    public RedisOrderStatusStore(StringRedisTemplate stringRedisTemplate) {
+        this.stringRedisTemplate = stringRedisTemplate;
+    }
+
+    @Override
+    public void put(long orderId, OrderStatus status) {
+        long bucket = bucketOf(orderId);
+        String key = ORDER_STATUS_KEY + bucket;
+        // 桶结束时间 + 保留时间 到期, 重复设置是幂等的.
+        // ID里的秒数按本地时间计算, 不是真实的 epoch 秒, 不能直接 EXPIREAT; 在同一坐标下算出剩余秒数再 EXPIRE
+        long now = IIdWorker.secondsOf(IIdWorker.minIdAt(LocalDateTime.now()));
+        long ttl = Math.max(1, (bucket + 1) * BUCKET_SECONDS + statusTtl - now);
+        stringRedisTemplate.executePipelined((RedisCallback<Object>) connection -> {
+            StringRedisConnection conn = (StringRedisConnection) connection;
+            if (status == OrderStatus.PENDING) {
+                conn.hSetNX(key, String.valueOf(orderId), String.valueOf(status.getCode()));
+            } else {
+                conn.hSet(key, String.valueOf(orderId), String.valueOf(status.getCode()));
+            }
+            conn.expire(key, ttl);
+            return null;
+        });
+    }
+
+    @Override
+    public OrderStatus get(long orderId) {
+        Object code = stringRedisTemplate.opsForHash().get(ORDER_STATUS_KEY + bucketOf(orderId), String.valueOf(orderId));
+        return code == null ? null : OrderStatus.of(Integer.parseInt(code.toString()));
+    }
+
+    private static long bucketOf(long orderId) {
+        return IIdWorker.secondsOf(orderId) / BUCKET_SECONDS;
+    }
+}
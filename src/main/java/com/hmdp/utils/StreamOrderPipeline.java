@@ -0,0 +1,296 @@
+package com.hmdp.utils;
+
+import com.hmdp.entity.SeckillVoucher;
+import com.hmdp.entity.VoucherOrder;
+import com.hmdp.service.ISeckillVoucherService;
+import com.hmdp.service.IVoucherOrderService;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import jakarta.annotation.Resource;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.data.redis.connection.stream.*;
+import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.DefaultRedisScript;
+import org.springframework.stereotype.Component;
+
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>
+ * Redis Stream 订单管道: secKill.lua 扣库存的同时 XADD 订单, 不存在"扣了库存但消息没发出去"的窗口
+ * </p>
+ * 所有节点在同一个消费者组里, 每个节点是一个消费者, XREADGROUP 一次读一批批量落库, 成功后 XACK 并 XDEL.
+ * 落库失败的消息留在 pending-list 中, 空闲超过 claimIdle 毫秒后由任意节点 XAUTOCLAIM 认领重试,
+ * 投递超过 MAX_RETRY 次进入失败处理. 消费者组的 lag 和 pending 数量导出为监控指标.
+ * 每个分段一个 Stream stream.orders:{tag}, 和库存同一个 hash tag, 集群下脚本不会 CROSSSLOT.
+ * 消费者定期按进行中(以及结束不满一天)的秒杀券算出所有 Stream, 逐个非阻塞读取, 都没有消息时短暂休眠;
+ * 已经结束并且消费完的 Stream 直接删除
+ *
+ * @author scatteredream
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "custom.seckill.pipeline", havingValue = "stream")
+public class StreamOrderPipeline implements IOrderPipeline {
+    private static final String GROUP = "g1";
+    private static final int MAX_RETRY = 3;
+    private static final long MAINTENANCE_MILLIS = 5000;
+    private static final long IDLE_MILLIS = 100;
+    //认领超时 pending 消息的脚本
+    private static final DefaultRedisScript<List> CLAIM_SCRIPT;
+
+    static {
+        CLAIM_SCRIPT = new DefaultRedisScript<>();
+        CLAIM_SCRIPT.setLocation(new ClassPathResource("stream_claim.lua"));
+        CLAIM_SCRIPT.setResultType(List.class);
+    }
+
+    @Value("${custom.seckill.batchSize}")
+    private Integer batchSize;
+
+    @Value("${custom.seckill.streamClaimIdle}")
+    private Long claimIdle;
+
+    @Resource
+    private StringRedisTemplate stringRedisTemplate;
+
+    @Resource
+    @Lazy
+    private IVoucherOrderService voucherOrderService;
+
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+
+    @Resource
+    private MeterRegistry meterRegistry;
+
+    // 每个进程一个消费者
+    private final String consumerName = ManagementFactory.getRuntimeMXBean().getName();
+
+    private final AtomicLong pendingCount = new AtomicLong();
+
+    private final AtomicLong lag = new AtomicLong();
+
+    // 当前在读的 Stream, 只有消费线程访问
+    private final Set<String> streams = new LinkedHashSet<>();
+
+    private Thread consumer;
+
+    private volatile boolean running = true;
+
+    @PostConstruct
+    public void init() {
+        Gauge.builder("seckill.stream.pending", pendingCount, AtomicLong::get)
+                .description("消费者组 pending-list 中未确认的订单数").register(meterRegistry);
+        Gauge.builder("seckill.stream.lag", lag, AtomicLong::get)
+                .description("尚未投递给消费者组的订单数").register(meterRegistry);
+        consumer = new Thread(this::consumeLoop, "order-stream-consumer");
+        consumer.start();
+    }
+
+    @PreDestroy
+    public void destroy() throws InterruptedException {
+        running = false;
+        consumer.join(Duration.ofSeconds(5).toMillis());
+    }
+
+    @Override
+    public boolean submit(VoucherOrder order) {
+        // 订单已经由脚本写入 Stream
+        return true;
+    }
+
+    @Override
+    public boolean appendsInScript() {
+        return true;
+    }
+
+    private void consumeLoop() {
+        long nextMaintenance = 0;
+        while (running) {
+            try {
+                // 0.定期刷新要读的 Stream, 认领别的消费者超时未确认的消息, 刷新监控指标
+                if (System.currentTimeMillis() >= nextMaintenance) {
+                    refreshStreams();
+                    streams.forEach(this::claimStale);
+                    refreshMetrics();
+                    nextMaintenance = System.currentTimeMillis() + MAINTENANCE_MILLIS;
+                }
+                // 1.逐个 Stream 获取订单 XREADGROUP GROUP g1 c1 COUNT n STREAMS stream.orders:{tag} >
+                // 各个 Stream 不在同一个 slot, 不能一条命令读多个, 也不能阻塞在某一个上
+                boolean idle = true;
+                for (String stream : streams) {
+                    List<MapRecord<String, Object, Object>> list = stringRedisTemplate.opsForStream().read(
+                            Consumer.from(GROUP, consumerName),
+                            StreamReadOptions.empty().count(batchSize),
+                            StreamOffset.create(stream, ReadOffset.lastConsumed())
+                    );
+                    if (list == null || list.isEmpty()) {
+                        continue;
+                    }
+                    idle = false;
+                    List<RecordId> ids = new ArrayList<>(list.size());
+                    List<VoucherOrder> orders = new ArrayList<>(list.size());
+                    for (MapRecord<String, Object, Object> record : list) {
+                        ids.add(record.getId());
+                        orders.add(toOrder(record.getValue()));
+                    }
+                    persist(stream, ids, orders);
+                }
+                if (idle) {
+                    Thread.sleep(IDLE_MILLIS);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                log.error("处理订单异常", e);
+            }
+        }
+    }
+
+    /**
+     * 按进行中和刚结束的秒杀券算出所有分段的 Stream, 新出现的创建消费者组(MKSTREAM),
+     * 已经结束并且消费完(确认后的消息都被删除, 长度为 0)的删除
+     */
+    private void refreshStreams() {
+        LocalDateTime now = LocalDateTime.now();
+        Set<String> current = new LinkedHashSet<>();
+        for (SeckillVoucher voucher : seckillVoucherService.query().gt("end_time", now.minusDays(1)).list()) {
+            int segments = voucher.getSegments() == null ? 1 : voucher.getSegments();
+            boolean ended = !voucher.getEndTime().isAfter(now);
+            for (String tag : SeckillStockClient.tags(voucher.getVoucherId(), segments)) {
+                String stream = SeckillStockClient.streamKey(tag);
+                if (ended) {
+                    Long size = stringRedisTemplate.opsForStream().size(stream);
+                    if (size == null || size == 0) {
+                        stringRedisTemplate.delete(stream);
+                        streams.remove(stream);
+                        continue;
+                    }
+                }
+                if (!streams.contains(stream)) {
+                    try {
+                        stringRedisTemplate.opsForStream().createGroup(stream, ReadOffset.from("0"), GROUP);
+                    } catch (Exception e) {
+                        // BUSYGROUP: 消费者组已经存在
+                        log.debug("stream group [{}] of [{}] already exists", GROUP, stream);
+                    }
+                }
+                current.add(stream);
+            }
+        }
+        streams.retainAll(current);
+        streams.addAll(current);
+    }
+
+    /**
+     * 批量落库, 整批失败则逐条处理, 失败的消息不确认, 留在 pending-list 等待认领重试
+     */
+    private void persist(String stream, List<RecordId> ids, List<VoucherOrder> orders) {
+        try {
+            for (VoucherOrder order : voucherOrderService.createOrderBatch(orders)) {
+                voucherOrderService.setOrderStatus(order.getId(), OrderStatus.SUCCESS);
+            }
+            acknowledge(stream, ids);
+            return;
+        } catch (Exception e) {
+            log.error("批量落库失败, 退化为逐条处理: {} 条", orders.size(), e);
+        }
+        List<RecordId> succeeded = new ArrayList<>(ids.size());
+        for (int i = 0; i < orders.size(); i++) {
+            if (persistOne(orders.get(i))) {
+                succeeded.add(ids.get(i));
+            }
+        }
+        acknowledge(stream, succeeded);
+    }
+
+    private boolean persistOne(VoucherOrder order) {
+        try {
+            if (voucherOrderService.createOrder(order)) {
+                voucherOrderService.setOrderStatus(order.getId(), OrderStatus.SUCCESS);
+                return true;
+            }
+            log.error("处理订单失败, 等待重试: {}", order);
+        } catch (Exception e) {
+            log.error("处理订单失败, 等待重试: {}", order, e);
+        }
+        return false;
+    }
+
+    /**
+     * XAUTOCLAIM 认领空闲超时的消息: 投递次数超过上限的进入失败处理, 其余重试落库
+     */
+    private void claimStale(String stream) {
+        List<?> claimed = stringRedisTemplate.execute(CLAIM_SCRIPT, List.of(stream),
+                GROUP, consumerName, claimIdle.toString(), batchSize.toString());
+        if (claimed == null || claimed.isEmpty()) {
+            return;
+        }
+        List<RecordId> done = new ArrayList<>();
+        for (int i = 0; i + 4 < claimed.size(); i += 5) {
+            RecordId id = RecordId.of(claimed.get(i).toString());
+            VoucherOrder order = new VoucherOrder()
+                    .setId(Long.valueOf(claimed.get(i + 1).toString()))
+                    .setUserId(Long.valueOf(claimed.get(i + 2).toString()))
+                    .setVoucherId(Long.valueOf(claimed.get(i + 3).toString()));
+            long deliveries = Long.parseLong(claimed.get(i + 4).toString());
+            if (deliveries > MAX_RETRY) {
+                log.error("订单处理失败，超过最大重试次数: {}  {}", MAX_RETRY, order);
+                voucherOrderService.failOrder(order);
+                done.add(id);
+            } else if (persistOne(order)) {
+                done.add(id);
+            }
+        }
+        acknowledge(stream, done);
+    }
+
+    private void acknowledge(String stream, List<RecordId> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        RecordId[] array = ids.toArray(RecordId[]::new);
+        // 4.确认消息 XACK, 已确认的消息没有保留价值, 直接删除防止 Stream 无限增长
+        stringRedisTemplate.opsForStream().acknowledge(stream, GROUP, array);
+        stringRedisTemplate.opsForStream().delete(stream, array);
+    }
+
+    /**
+     * 所有 Stream 的 pending 和 lag 求和
+     */
+    private void refreshMetrics() {
+        long pending = 0, behind = 0;
+        for (String stream : streams) {
+            for (StreamInfo.XInfoGroup group : stringRedisTemplate.opsForStream().groups(stream)) {
+                if (!GROUP.equals(group.groupName())) {
+                    continue;
+                }
+                pending += group.pendingCount();
+                // lag 字段 Redis 7.0 以后才有
+                Object value = group.getRaw().get("lag");
+                behind += value instanceof Number number ? number.longValue() : 0;
+            }
+        }
+        pendingCount.set(pending);
+        lag.set(behind);
+    }
+
+    private static VoucherOrder toOrder(Map<Object, Object> value) {
+        return new VoucherOrder()
+                .setId(Long.valueOf(value.get("id").toString()))
+                .setUserId(Long.valueOf(value.get("userId").toString()))
+                .setVoucherId(Long.valueOf(value.get("voucherId").toString()));
+    }
+}
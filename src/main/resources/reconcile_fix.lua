@@ -0,0 +1,10 @@
+-- 对账修正: 库存和观察到的值一致时才修正, 期间有新的下单就放弃, 下一轮重新对账
+local stockKey = KEYS[1]
+local expected = tonumber(ARGV[1])
+local delta = tonumber(ARGV[2])
+
+if((tonumber(redis.call('get', stockKey)) or 0) ~= expected) then
+    return 0
+end
+redis.call('set', stockKey, math.max(0, expected + delta))
+return 1
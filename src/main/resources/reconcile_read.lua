@@ -0,0 +1,17 @@
+-- 对账: 原子地读出一个 hash tag 下的库存和已占用的下单数, KEYS 依次是库存 订单 活动信息
+local stockKey = KEYS[1]
+local orderKey = KEYS[2]
+
+local stock = tonumber(redis.call('get', stockKey)) or 0
+local reserved = 0
+if(redis.call('hget', KEYS[3], 'membership') == 'bitmap') then
+    -- bitmap 编码: 逐块 BITCOUNT
+    for _, chunk in ipairs(redis.call('smembers', orderKey .. ":b")) do
+        reserved = reserved + redis.call('bitcount', orderKey .. ":b:" .. chunk)
+    end
+else
+    for _, count in ipairs(redis.call('hvals', orderKey)) do
+        reserved = reserved + tonumber(count)
+    end
+end
+return { stock, reserved }
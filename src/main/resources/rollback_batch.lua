@@ -0,0 +1,38 @@
+-- 批量回滚同一个 hash tag 下的下单资格, ARGV 是 订单id,用户id 交替
+-- 0. 键列表: 库存 订单 活动信息 已回滚订单ID set, 都带同一个 hash tag
+local stockKey = KEYS[1]
+local orderKey = KEYS[2]
+local bitmap = redis.call('hget', KEYS[3], 'membership') == 'bitmap'
+local rollbackKey = KEYS[4]
+
+-- 3.只有用户确实有已下单记录的才回补库存, 活动结束清理以后不再回补
+local restored = 0
+for i = 1, #ARGV, 2 do
+    local userId = ARGV[i + 1]
+    -- 已经回滚过的订单(重复投递)跳过
+    if(redis.call('sadd', rollbackKey, ARGV[i]) == 1) then
+        if(bitmap) then
+            local uid = tonumber(userId)
+            local chunkKey = orderKey .. ":b:" .. math.floor(uid / 65536)
+            -- 位是 1 才算回滚, 先 getbit 避免清理以后重新创建出空的块
+            if(redis.call('getbit', chunkKey, uid % 65536) == 1) then
+                redis.call('setbit', chunkKey, uid % 65536, 0)
+                restored = restored + 1
+            end
+        else
+            local count = tonumber(redis.call('hget', orderKey, userId)) or 0
+            if(count == 1) then
+                redis.call('hdel', orderKey, userId)
+            elseif(count > 1) then
+                redis.call('hincrby', orderKey, userId, -1)
+            end
+            if(count > 0) then
+                restored = restored + 1
+            end
+        end
+    end
+end
+if(restored > 0 and redis.call('exists', stockKey) == 1) then
+    redis.call('incrby', stockKey, restored)
+end
+return restored
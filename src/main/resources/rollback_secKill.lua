@@ -1,24 +1,48 @@
--- 0. 键列表
-local stockPrefix = KEYS[1]
-local orderPrefix = KEYS[2]
+-- 0. 键列表, 都带同一个 hash tag(券id或分段)
+-- 0.1.库存key
+local stockKey = KEYS[1]
+-- 0.2.订单key
+local orderKey = KEYS[2]
+-- 0.3.活动信息key, 决定下单记录的编码
+local metaKey = KEYS[3]
+-- 0.4.已回滚的订单ID set
+local rollbackKey = KEYS[4]
 
-local voucherId = ARGV[1]
--- 1.2.用户id
-local userId = ARGV[2]
--- 1.3.订单id (为了使用消息队列将订单id传递到消息队列中)
---local orderId = ARGV[3]
+-- 1.1.用户id
+local userId = ARGV[1]
+-- 1.2.订单id
+local orderId = ARGV[2]
 
--- 2.数据key
--- 2.1.库存key
-local stockKey = stockPrefix .. "{" .. voucherId .."}"
--- 2.2.订单key
-local orderKey = orderPrefix .. "{" .. voucherId .."}"
+local bitmap = redis.call('hget', metaKey, 'membership') == 'bitmap'
 
+-- 2.同一订单重复回滚直接返回
+if(redis.call('sadd', rollbackKey, orderId) == 0) then
+    return 0
+end
 
--- 3.4.恢复库存 incrby stockKey -1
-redis.call('incrby', stockKey, 1)
--- 3.5.移除 srem orderKey userId
-redis.call('srem', orderKey, userId)
--- 3.6.发送消息到队列中， XADD stream.orders * k1 v1 k2 v2 ...
--- redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
-return 0
\ No newline at end of file
+-- 3.用户确实有已下单记录才回滚, 活动结束清理以后不再回补
+if(bitmap) then
+    local uid = tonumber(userId)
+    local chunkKey = orderKey .. ":b:" .. math.floor(uid / 65536)
+    -- 3.1.位是 0 说明没有下单记录; 先 getbit, 清理以后不会被 setbit 重新创建出空的块
+    if(redis.call('getbit', chunkKey, uid % 65536) == 0) then
+        return 0
+    end
+    redis.call('setbit', chunkKey, uid % 65536, 0)
+else
+    local count = tonumber(redis.call('hget', orderKey, userId)) or 0
+    if(count <= 0) then
+        return 0
+    end
+    -- 3.1.已下单数减一, 减到 0 删除字段
+    if(count == 1) then
+        redis.call('hdel', orderKey, userId)
+    else
+        redis.call('hincrby', orderKey, userId, -1)
+    end
+end
+-- 3.2.恢复库存 incrby stockKey 1
+if(redis.call('exists', stockKey) == 1) then
+    redis.call('incrby', stockKey, 1)
+end
+return 1
@@ -1,36 +1,71 @@
--- 0. 键列表
-local stockPrefix = KEYS[1]
-
-local orderPrefix = KEYS[2]
+-- 0. 键列表, 都带 {voucherId} hash tag, 集群下按这些 key 路由到同一个 slot
+-- 0.1.库存key
+local stockKey = KEYS[1]
+-- 0.2.订单key hash userId -> 已下单数; bitmap 编码下是 orderKey:b:<userId/65536> 分块位图, orderKey:b 记录用到的块
+-- 分块的 key 由 orderKey 派生, hash tag 相同, 和声明的 key 在同一个 slot
+local orderKey = KEYS[2]
+-- 0.3.活动信息key hash begin end quota membership, 由激活调度器预热
+local metaKey = KEYS[3]
 -- 1.参数列表
 -- 1.1.优惠券id
 local voucherId = ARGV[1]
 -- 1.2.用户id
 local userId = ARGV[2]
--- 1.3.订单id (为了使用消息队列将订单id传递到消息队列中)
---local orderId = ARGV[3]
-
--- 2.数据key
--- 2.1.库存key
-local stockKey = stockPrefix .. "{" .. voucherId .."}"
--- 2.2.订单key
-local orderKey = orderPrefix .. "{" .. voucherId .."}"
+-- 1.3.订单id (stream 模式下传入, 扣库存的同时把订单写入 Stream KEYS[4] stream.orders:{voucherId})
+local orderId = ARGV[3]
 
 -- 3.脚本业务
---TODO 防止超卖 3.1.判断库存是否充足 get stockKey
-if(tonumber(redis.call('get', stockKey)) <= 0) then
+--TODO 时间窗口 3.0.没有预热或者还没开始返回4, 已经结束返回5
+local meta = redis.call('hmget', metaKey, 'begin', 'end', 'quota', 'membership')
+if(not meta[1]) then
+    return 4
+end
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+if(now < tonumber(meta[1])) then
+    return 4
+end
+if(now >= tonumber(meta[2])) then
+    return 5
+end
+--TODO 防止超卖 3.1.判断库存是否充足 get stockKey, 激活还没写入库存时按未开始处理, 不能当成售罄
+local stock = redis.call('get', stockKey)
+if(not stock) then
+    -- 提前清理过的活动(已标记 closed)按已结束处理
+    if(redis.call('hexists', metaKey, 'closed') == 1) then
+        return 5
+    end
+    return 4
+end
+if(tonumber(stock) <= 0) then
     -- 3.2.库存不足，返回1
     return 1
 end
---TODO 一人一单 3.2.判断用户是否下单 SISMEMBER orderKey userId
-if(redis.call('sismember', orderKey, userId) == 1) then
-    -- 3.3.存在，说明是重复下单，返回2
+--TODO 限购 3.2.判断用户已下单数是否达到限购数 HGET orderKey userId / GETBIT
+local bitmap = meta[4] == 'bitmap'
+local uid = tonumber(userId)
+local chunkKey = orderKey .. ":b:" .. math.floor(uid / 65536)
+local count
+if(bitmap) then
+    count = redis.call('getbit', chunkKey, uid % 65536)
+else
+    count = tonumber(redis.call('hget', orderKey, userId)) or 0
+end
+if(count >= tonumber(meta[3])) then
+    -- 3.3.达到限购数，返回2
     return 2
 end
 -- 3.4.扣库存 incrby stockKey -1
 redis.call('incrby', stockKey, -1)
--- 3.5.下单（保存用户）sadd orderKey userId 没有orderKey则自动创建
-redis.call('sadd', orderKey, userId)
--- 3.6.发送消息到队列中， XADD stream.orders * k1 v1 k2 v2 ...
--- redis.call('xadd', 'stream.orders', '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
-return 0
\ No newline at end of file
+-- 3.5.下单（记录用户已下单数）hincrby orderKey userId 1 / setbit 没有orderKey则自动创建
+if(bitmap) then
+    redis.call('setbit', chunkKey, uid % 65536, 1)
+    redis.call('sadd', orderKey .. ":b", math.floor(uid / 65536))
+else
+    redis.call('hincrby', orderKey, userId, 1)
+end
+-- 3.6.发送消息到队列中， XADD stream.orders:{voucherId} * k1 v1 k2 v2 ...
+if(orderId ~= nil) then
+    redis.call('xadd', KEYS[4], '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+end
+return 0
@@ -0,0 +1,68 @@
+-- 批量版本的秒杀脚本: 一次判断同一张券的多个下单请求, 返回每个请求的结果
+-- 0. 键列表, 都带 {voucherId} hash tag
+local stockKey = KEYS[1]
+local orderKey = KEYS[2]
+local metaKey = KEYS[3]
+-- 1.参数列表: ARGV[1..n] 依次是各个请求的用户id
+
+local result = {}
+-- 3.时间窗口: 没有预热或者还没开始整批返回4, 已经结束整批返回5
+local meta = redis.call('hmget', metaKey, 'begin', 'end', 'quota', 'membership')
+local closed = 0
+if(not meta[1]) then
+    closed = 4
+else
+    local time = redis.call('time')
+    local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+    if(now < tonumber(meta[1])) then
+        closed = 4
+    elseif(now >= tonumber(meta[2])) then
+        closed = 5
+    elseif(redis.call('exists', stockKey) == 0) then
+        -- 激活还没写入库存, 按未开始处理
+        closed = 4
+    end
+end
+if(closed ~= 0) then
+    for i = 1, #ARGV do
+        result[i] = closed
+    end
+    return result
+end
+local quota = tonumber(meta[3])
+local bitmap = meta[4] == 'bitmap'
+
+-- 4.逐个判断, 库存在脚本里累计, 最后一次性扣减
+local stock = tonumber(redis.call('get', stockKey)) or 0
+local taken = 0
+for i = 1, #ARGV do
+    local userId = ARGV[i]
+    local uid = tonumber(userId)
+    local chunkKey = orderKey .. ":b:" .. math.floor(uid / 65536)
+    local count
+    if(bitmap) then
+        count = redis.call('getbit', chunkKey, uid % 65536)
+    else
+        count = tonumber(redis.call('hget', orderKey, userId)) or 0
+    end
+    if(stock - taken <= 0) then
+        -- 库存不足
+        result[i] = 1
+    elseif(count >= quota) then
+        -- 达到限购数(包括同一批里的重复请求)
+        result[i] = 2
+    else
+        taken = taken + 1
+        if(bitmap) then
+            redis.call('setbit', chunkKey, uid % 65536, 1)
+            redis.call('sadd', orderKey .. ":b", math.floor(uid / 65536))
+        else
+            redis.call('hincrby', orderKey, userId, 1)
+        end
+        result[i] = 0
+    end
+end
+if(taken > 0) then
+    redis.call('incrby', stockKey, -taken)
+end
+return result
@@ -0,0 +1,59 @@
+-- 分段库存版本的秒杀脚本, 只操作用户所在的那一段(同一个 hash tag, 集群下在同一个 slot)
+-- 0. 键列表, 都带分段的 hash tag {voucherId:segment}, 活动信息在每一段都有一份
+local stockKey = KEYS[1]
+local orderKey = KEYS[2]
+local metaKey = KEYS[3]
+-- 1.参数列表
+-- 1.1.用户id
+local userId = ARGV[1]
+-- 1.2.订单id和优惠券id (stream 模式下传入, 扣库存的同时把订单写入本段的 Stream KEYS[4] stream.orders:{voucherId:segment})
+local orderId = ARGV[2]
+local voucherId = ARGV[3]
+
+-- 3.时间窗口: 没有预热或者还没开始返回4, 已经结束返回5
+local meta = redis.call('hmget', metaKey, 'begin', 'end', 'quota', 'membership')
+if(not meta[1]) then
+    return 4
+end
+local time = redis.call('time')
+local now = tonumber(time[1]) * 1000 + math.floor(tonumber(time[2]) / 1000)
+if(now < tonumber(meta[1])) then
+    return 4
+end
+if(now >= tonumber(meta[2])) then
+    return 5
+end
+-- 3.5.本段库存还没写入说明激活没有完成, 按未开始处理, 不占名额
+if(redis.call('exists', stockKey) == 0) then
+    return 4
+end
+-- 4.限购: 用户固定落在自己的分段, 只需要检查这一段的下单记录
+local bitmap = meta[4] == 'bitmap'
+local uid = tonumber(userId)
+local chunkKey = orderKey .. ":b:" .. math.floor(uid / 65536)
+local count
+if(bitmap) then
+    count = redis.call('getbit', chunkKey, uid % 65536)
+else
+    count = tonumber(redis.call('hget', orderKey, userId)) or 0
+end
+if(count >= tonumber(meta[3])) then
+    return 2
+end
+-- 5.先记录用户(本段库存耗尽时就是占住限购名额)
+if(bitmap) then
+    redis.call('setbit', chunkKey, uid % 65536, 1)
+    redis.call('sadd', orderKey .. ":b", math.floor(uid / 65536))
+else
+    redis.call('hincrby', orderKey, userId, 1)
+end
+-- 6.本段有库存, 扣库存
+if((tonumber(redis.call('get', stockKey)) or 0) > 0) then
+    redis.call('incrby', stockKey, -1)
+    if(orderId ~= nil) then
+        redis.call('xadd', KEYS[4], '*', 'userId', userId, 'voucherId', voucherId, 'id', orderId)
+    end
+    return 0
+end
+-- 7.本段库存耗尽, 名额已经占住, 由调用方到兄弟分段扣库存
+return 3
@@ -0,0 +1,10 @@
+-- 激活秒杀券: 活动信息不存在时才写入, 多个节点同时激活只有一个成功
+-- KEYS[1] 活动信息key, KEYS[2] 分段数key; ARGV: begin end quota membership 过期时间点(毫秒) 分段数
+if(redis.call('exists', KEYS[1]) == 1) then
+    return 0
+end
+redis.call('hset', KEYS[1], 'begin', ARGV[1], 'end', ARGV[2], 'quota', ARGV[3], 'membership', ARGV[4])
+redis.call('pexpireat', KEYS[1], ARGV[5])
+-- 分段数和活动信息一起写入, 看到活动信息的节点一定能读到正确的分段数
+redis.call('set', KEYS[2], ARGV[6])
+return 1
@@ -0,0 +1,16 @@
+-- 只扣减某一个分段的库存, 用于从兄弟分段借库存, KEYS[1] 是该分段的库存key
+-- 返回 0 扣减成功, 1 本段库存不足, 2 本段库存还没写入(激活没有完成)
+local stockKey = KEYS[1]
+local stock = redis.call('get', stockKey)
+if(not stock) then
+    return 2
+end
+if(tonumber(stock) <= 0) then
+    return 1
+end
+redis.call('incrby', stockKey, -1)
+-- stream 模式下扣库存的同时把订单写入该分段的 Stream KEYS[2]: ARGV[1] orderId, ARGV[2] userId, ARGV[3] voucherId
+if(ARGV[1] ~= nil) then
+    redis.call('xadd', KEYS[2], '*', 'userId', ARGV[2], 'voucherId', ARGV[3], 'id', ARGV[1])
+end
+return 0
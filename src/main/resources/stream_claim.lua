@@ -0,0 +1,19 @@
+-- 认领空闲超时的 pending 消息, 同时查出每条消息的投递次数
+-- KEYS[1] stream, ARGV[1] group, ARGV[2] consumer, ARGV[3] minIdle(ms), ARGV[4] count
+local claimed = redis.call('xautoclaim', KEYS[1], ARGV[1], ARGV[2], ARGV[3], '0-0', 'COUNT', ARGV[4])
+local result = {}
+for _, entry in ipairs(claimed[2]) do
+    local id = entry[1]
+    local fields = {}
+    for i = 1, #entry[2], 2 do
+        fields[entry[2][i]] = entry[2][i + 1]
+    end
+    local pending = redis.call('xpending', KEYS[1], ARGV[1], id, id, 1)
+    -- 扁平返回: id, 订单id, 用户id, 优惠券id, 投递次数
+    table.insert(result, id)
+    table.insert(result, fields['id'])
+    table.insert(result, fields['userId'])
+    table.insert(result, fields['voucherId'])
+    table.insert(result, tostring(pending[1][4]))
+end
+return result
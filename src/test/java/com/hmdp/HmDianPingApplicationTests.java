@@ -1,30 +1,49 @@
 package com.hmdp;
 
+import com.hmdp.config.RabbitMQConfig;
 import com.hmdp.entity.Follow;
+import com.hmdp.entity.SeckillVoucher;
 import com.hmdp.entity.Shop;
+import com.hmdp.entity.VoucherOrder;
 import com.hmdp.service.IFollowService;
+import com.hmdp.service.ISeckillVoucherService;
 import com.hmdp.service.IShopService;
+import com.hmdp.service.IVoucherOrderService;
 import com.hmdp.utils.CacheClient;
+import com.hmdp.utils.HotKeyDetector;
 import com.hmdp.utils.RedisIdWorker;
+import com.hmdp.utils.SeckillEligibilityBatcher;
+import com.hmdp.utils.SeckillStockClient;
+import com.hmdp.utils.SnowflakeIdWorker;
 import jakarta.annotation.Resource;
 import lombok.extern.slf4j.Slf4j;
 import org.junit.jupiter.api.Test;
 import org.redisson.api.RLock;
 import org.redisson.api.RedissonClient;
+import org.springframework.amqp.core.AmqpAdmin;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.data.geo.Point;
 import org.springframework.data.redis.connection.RedisGeoCommands;
 import org.springframework.data.redis.core.StringRedisTemplate;
+import org.springframework.data.redis.core.script.RedisScript;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
 import java.util.stream.Collectors;
 
 import static com.hmdp.utils.RedisConstants.*;
@@ -48,6 +67,20 @@ class HmDianPingApplicationTests {
     RabbitTemplate rabbitTemplate;
     @Resource
     private RedisIdWorker redisIdWorker;
+    @Resource
+    private IVoucherOrderService voucherOrderService;
+    @Resource
+    private ISeckillVoucherService seckillVoucherService;
+    @Resource
+    private SeckillStockClient seckillStockClient;
+    @Resource
+    private SeckillEligibilityBatcher eligibilityBatcher;
+    @Resource
+    private HotKeyDetector hotKeyDetector;
+    @Resource
+    private AmqpAdmin amqpAdmin;
+    @Value("${custom.seckill.retryDelays}")
+    private long[] retryDelays;
 
     @Test
     void saveShop2RedisTest() {
@@ -55,6 +88,175 @@ class HmDianPingApplicationTests {
         cacheClient.setWithLogicalExpire(CACHE_SHOP_KEY + 1L, shop, 10L, TimeUnit.SECONDS);
     }
 
+    /**
+     * 热点店铺反复读取: 只走 Redis 与 L1 + Redis 的耗时对比, 更新后 L1 被清除
+     */
+    @Test
+    void testTwoLevelCache() {
+        int rounds = 100_000;
+        cacheClient.getAvoidPenetrationUsingNullObject(CACHE_SHOP_KEY, 1L, Shop.class, shopService::getById);
+        for (boolean enabled : List.of(false, true)) {
+            ReflectionTestUtils.setField(cacheClient, "l1Enabled", enabled);
+            ReflectionTestUtils.setField(cacheClient, "l1", null);
+            cacheClient.init();
+            long begin = System.nanoTime();
+            for (int i = 0; i < rounds; i++) {
+                cacheClient.getAvoidPenetrationUsingNullObject(CACHE_SHOP_KEY, 1L + i % 10, Shop.class, shopService::getById);
+            }
+            log.info("[l1={}] 平均 {} ns/次", enabled, (System.nanoTime() - begin) / rounds);
+        }
+        Shop before = cacheClient.getAvoidPenetrationUsingNullObject(CACHE_SHOP_KEY, 1L, Shop.class, shopService::getById);
+        cacheClient.invalidate(CACHE_SHOP_KEY + 1L);
+        Shop after = cacheClient.getAvoidPenetrationUsingNullObject(CACHE_SHOP_KEY, 1L, Shop.class, shopService::getById);
+        // 清除后重新从数据库加载, 不再是 L1 中的同一个对象
+        assert before != after;
+        ReflectionTestUtils.setField(cacheClient, "l1", null);
+    }
+
+    /**
+     * 热点 key 过期瞬间的并发未命中: 互斥锁策略只查一次数据库, 其余请求等待同一次加载
+     */
+    @Test
+    void testMutexSingleFlight() throws InterruptedException {
+        int threads = 300;
+        // 同时清除本地的热点副本
+        cacheClient.invalidate(CACHE_SHOP_KEY + 1L);
+        AtomicInteger loads = new AtomicInteger();
+        CountDownLatch latch = new CountDownLatch(threads);
+        long begin = System.nanoTime();
+        for (int i = 0; i < threads; i++) {
+            es.submit(() -> {
+                try {
+                    Shop shop = cacheClient.getAvoidHotspotInvalidUsingMutex(CACHE_SHOP_KEY, 1L, Shop.class, id -> {
+                        loads.incrementAndGet();
+                        return shopService.getById(id);
+                    });
+                    assert shop != null;
+                } finally {
+                    latch.countDown();
+                }
+            });
+        }
+        latch.await();
+        log.info("{} 个并发请求, 数据库加载 {} 次, 耗时 {} ms", threads, loads.get(), (System.nanoTime() - begin) / 1_000_000);
+        assert loads.get() == 1;
+    }
+
+    /**
+     * 一页店铺: 逐个查询缓存 vs getAll 一次 MGET, 结果一致
+     */
+    @Test
+    void testCacheGetAll() {
+        List<Long> ids = shopService.query().last("LIMIT 10").list().stream().map(Shop::getId).toList();
+        Function<Collection<Long>, Map<Long, Shop>> dbFallback = shopIds -> shopService.listByIds(shopIds).stream()
+                .collect(Collectors.toMap(Shop::getId, Function.identity()));
+        ids.forEach(id -> stringRedisTemplate.delete(CACHE_SHOP_KEY + id));
+        // 首次批量查询全部缺失, 一次查库一次管道写回
+        assert cacheClient.getAll(CACHE_SHOP_KEY, ids, Shop.class, dbFallback).size() == ids.size();
+        int rounds = 1000;
+        long begin = System.nanoTime();
+        for (int i = 0; i < rounds; i++) {
+            for (Long id : ids) {
+                cacheClient.getAvoidPenetrationUsingNullObject(CACHE_SHOP_KEY, id, Shop.class, shopService::getById);
+            }
+        }
+        long single = System.nanoTime() - begin;
+        begin = System.nanoTime();
+        Map<Long, Shop> shops = null;
+        for (int i = 0; i < rounds; i++) {
+            shops = cacheClient.getAll(CACHE_SHOP_KEY, ids, Shop.class, dbFallback);
+        }
+        long batch = System.nanoTime() - begin;
+        log.info("一页 {} 个店铺: 逐个查询 {} us/页, getAll {} us/页", ids.size(), single / rounds / 1000, batch / rounds / 1000);
+        assert new ArrayList<>(shops.keySet()).equals(ids);
+        // 不存在的ID写入空值, 不出现在结果中
+        assert cacheClient.getAll(CACHE_SHOP_KEY, List.of(-1L), Shop.class, dbFallback).isEmpty();
+        assert "".equals(stringRedisTemplate.opsForValue().get(CACHE_SHOP_KEY + -1L));
+    }
+
+    /**
+     * 五种缓存模式的读延迟: 热点 key 每 100ms 到期一次(TTL 类模式删除 key, 逻辑过期模式写入已过期的数据,
+     * xfetch 模式写入 100ms 后过期的数据), 数据库查询额外耗时 20ms, 对比 p50/p99 和查库次数
+     */
+    @Test
+    void testCacheModeLatencyBenchmark() throws InterruptedException {
+        List<Long> ids = List.of(1L, 2L, 3L, 4L, 5L);
+        int threads = 50, perThread = 2000, n = threads * perThread;
+        for (String mode : List.of("nullobject", "logicalexpire", "mutex", "bloom", "xfetch")) {
+            AtomicInteger loads = new AtomicInteger();
+            Function<Long, Shop> dbFallback = id -> {
+                loads.incrementAndGet();
+                try {
+                    Thread.sleep(20);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                return shopService.getById(id);
+            };
+            Map<Long, Shop> shops = shopService.listByIds(ids).stream()
+                    .collect(Collectors.toMap(Shop::getId, Function.identity()));
+            Runnable expire = () -> {
+                for (Long id : ids) {
+                    switch (mode) {
+                        case "logicalexpire" -> cacheClient.setWithLogicalExpire(CACHE_SHOP_KEY + id, shops.get(id), 0L, TimeUnit.SECONDS);
+                        case "xfetch" -> cacheClient.setWithXFetch(CACHE_SHOP_KEY + id, shops.get(id), 20, 100L, TimeUnit.MILLISECONDS);
+                        default -> stringRedisTemplate.delete(CACHE_SHOP_KEY + id);
+                    }
+                }
+            };
+            expire.run();
+            ScheduledExecutorService expirer = Executors.newSingleThreadScheduledExecutor();
+            expirer.scheduleAtFixedRate(expire, 100, 100, TimeUnit.MILLISECONDS);
+            long[] latencies = new long[n];
+            CountDownLatch latch = new CountDownLatch(threads);
+            for (int t = 0; t < threads; t++) {
+                int base = t * perThread;
+                es.submit(() -> {
+                    for (int i = base; i < base + perThread; i++) {
+                        Long id = ids.get(i % ids.size());
+                        long start = System.nanoTime();
+                        switch (mode) {
+                            case "nullobject" -> cacheClient.getAvoidPenetrationUsingNullObject(CACHE_SHOP_KEY, id, Shop.class, dbFallback);
+                            case "logicalexpire" -> cacheClient.getAvoidHotSpotInvalidUsingLogicalExpire(CACHE_SHOP_KEY, id, Shop.class, dbFallback);
+                            case "mutex" -> cacheClient.getAvoidHotspotInvalidUsingMutex(CACHE_SHOP_KEY, id, Shop.class, dbFallback);
+                            case "bloom" -> cacheClient.getAvoidPenetrationUsingBloom(CACHE_SHOP_KEY, id, Shop.class, dbFallback);
+                            default -> cacheClient.getUsingXFetch(CACHE_SHOP_KEY, id, Shop.class, dbFallback);
+                        }
+                        latencies[i] = System.nanoTime() - start;
+                    }
+                    latch.countDown();
+                });
+            }
+            latch.await();
+            expirer.shutdownNow();
+            Arrays.sort(latencies);
+            log.info("[{}] p50 {} us, p99 {} us, max {} ms, 查库 {} 次", mode, latencies[n / 2] / 1000,
+                    latencies[n * 99 / 100] / 1000, latencies[n - 1] / 1_000_000, loads.get());
+        }
+        ids.forEach(id -> stringRedisTemplate.delete(CACHE_SHOP_KEY + id));
+    }
+
+    /**
+     * 突发流量: 一个店铺被集中访问后几秒内被识别为热点, 之后的读取由本地热点副本承接, 不再访问 Redis
+     */
+    @Test
+    void testHotKeyDetection() throws InterruptedException {
+        String key = CACHE_SHOP_KEY + 2L;
+        long begin = System.currentTimeMillis();
+        while (!hotKeyDetector.isHot(key) && System.currentTimeMillis() - begin < 5000) {
+            cacheClient.getAvoidPenetrationUsingNullObject(CACHE_SHOP_KEY, 2L, Shop.class, shopService::getById);
+        }
+        log.info("{} 毫秒后识别为热点, 当前热点: {}", System.currentTimeMillis() - begin, hotKeyDetector.hotKeys());
+        assert hotKeyDetector.isHot(key);
+        // 删除 Redis 中的数据, 热点副本仍然能返回
+        cacheClient.getAvoidPenetrationUsingNullObject(CACHE_SHOP_KEY, 2L, Shop.class, shopService::getById);
+        stringRedisTemplate.delete(key);
+        assert cacheClient.getAvoidPenetrationUsingNullObject(CACHE_SHOP_KEY, 2L, Shop.class, id -> null) != null;
+        // 访问停止后逐渐衰减降级
+        Thread.sleep(10_000);
+        assert !hotKeyDetector.isHot(key);
+    }
+
     /**
      * test unique ID
      */
@@ -77,6 +279,98 @@ class HmDianPingApplicationTests {
         log.info("time = {}", end - begin);
     }
 
+    /**
+     * 多个节点(多个 segment 模式的 RedisIdWorker 实例)并发生成ID: 全局不重复, 每个线程拿到的ID严格递增,
+     * 再对比 incr 与 segment 两种模式的吞吐
+     */
+    @Test
+    void testIdSegmentAcrossNodes() throws InterruptedException {
+        int nodes = 3, threadsPerNode = 20, perThread = 5000, n = nodes * threadsPerNode * perThread;
+        for (String mode : List.of("incr", "segment")) {
+            List<RedisIdWorker> workers = new ArrayList<>();
+            for (int i = 0; i < nodes; i++) {
+                RedisIdWorker worker = new RedisIdWorker(stringRedisTemplate);
+                ReflectionTestUtils.setField(worker, "mode", mode);
+                ReflectionTestUtils.setField(worker, "segmentSize", 1000);
+                worker.init();
+                workers.add(worker);
+            }
+            long[][] ids = new long[nodes * threadsPerNode][perThread];
+            CountDownLatch latch = new CountDownLatch(ids.length);
+            long begin = System.nanoTime();
+            for (int t = 0; t < ids.length; t++) {
+                RedisIdWorker worker = workers.get(t % nodes);
+                long[] out = ids[t];
+                es.submit(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        out[i] = worker.nextId("test:");
+                    }
+                    latch.countDown();
+                });
+            }
+            latch.await();
+            long elapsed = System.nanoTime() - begin;
+            workers.forEach(RedisIdWorker::destroy);
+            log.info("[{}] {} 个ID, 吞吐 {} 个/s", mode, n, n * 1_000_000_000L / elapsed);
+            Set<Long> unique = new HashSet<>(n * 2);
+            for (long[] out : ids) {
+                for (int i = 0; i < perThread; i++) {
+                    assert unique.add(out[i]) : "ID 重复: " + out[i];
+                    assert i == 0 || out[i] > out[i - 1] : "ID 没有递增: " + out[i];
+                }
+            }
+        }
+    }
+
+    /**
+     * snowflake 发号: 两个节点并发生成的ID不重复, 时钟回拨后同一节点的ID仍然递增
+     */
+    @Test
+    void testSnowflakeIdWorker() throws InterruptedException {
+        int threads = 16, perThread = 100_000, n = 2 * threads * perThread;
+        List<SnowflakeIdWorker> workers = new ArrayList<>();
+        for (int i = 0; i < 2; i++) {
+            SnowflakeIdWorker worker = new SnowflakeIdWorker();
+            ReflectionTestUtils.setField(worker, "stringRedisTemplate", stringRedisTemplate);
+            ReflectionTestUtils.setField(worker, "leaseTtl", 30000L);
+            ReflectionTestUtils.setField(worker, "maxBackward", 5L);
+            worker.init();
+            workers.add(worker);
+        }
+        try {
+            assert workers.get(0).workerId() != workers.get(1).workerId();
+            long[][] ids = new long[2 * threads][perThread];
+            CountDownLatch latch = new CountDownLatch(ids.length);
+            long begin = System.nanoTime();
+            for (int t = 0; t < ids.length; t++) {
+                SnowflakeIdWorker worker = workers.get(t % 2);
+                long[] out = ids[t];
+                es.submit(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        out[i] = worker.nextId("order:");
+                    }
+                    latch.countDown();
+                });
+            }
+            latch.await();
+            log.info("snowflake {} 个ID, 吞吐 {} 个/s", n, n * 1_000_000_000L / (System.nanoTime() - begin));
+            Set<Long> unique = new HashSet<>(n * 2);
+            for (long[] out : ids) {
+                for (long id : out) {
+                    assert unique.add(id) : "ID 重复: " + id;
+                }
+            }
+            // 模拟时钟回拨 3 秒
+            SnowflakeIdWorker worker = workers.get(0);
+            long before = worker.nextId("order:");
+            long offset = (long) ReflectionTestUtils.getField(worker, "offsetSeconds");
+            ReflectionTestUtils.setField(worker, "offsetSeconds", offset - 3);
+            assert worker.nextId("order:") > before;
+        } finally {
+            workers.forEach(SnowflakeIdWorker::destroy);
+        }
+    }
+
     @Test
     void testRedisDistributedLock() throws InterruptedException {
         RLock lock = redissonClient.getLock("anyLock");
@@ -136,4 +430,142 @@ class HmDianPingApplicationTests {
         rabbitTemplate.convertAndSend("hmdianping.direct", "direct.seckill", "测试发送消息");
     }
 
+    /**
+     * 启动后每一级退避的延迟队列和死信的退避队列都已经声明, 否则重试发布收不到确认, 全部退化为立即重新入队
+     */
+    @Test
+    void testRetryQueuesDeclared() {
+        // 建立连接时 RabbitAdmin 声明所有 Declarables
+        rabbitTemplate.execute(channel -> null);
+        for (long delay : retryDelays) {
+            assert amqpAdmin.getQueueInfo(RabbitMQConfig.retryQueueName(delay)) != null : "缺少延迟队列 " + delay;
+        }
+        assert amqpAdmin.getQueueInfo(RabbitMQConfig.RETRY_DLQ_QUEUE) != null;
+    }
+
+    /**
+     * 逐条落库 vs 批量落库 的吞吐对比, 跑完删除测试订单并恢复库存
+     */
+    @Test
+    void testBatchCreateOrderThroughput() {
+        SeckillVoucher voucher = seckillVoucherService.list().getFirst();
+        Long voucherId = voucher.getVoucherId();
+        int n = 1000, batchSize = 100;
+        seckillVoucherService.update().setSql("stock = stock + " + 2 * n).eq("voucher_id", voucherId).update();
+        List<Long> ids = new ArrayList<>(2 * n);
+
+        long begin = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            VoucherOrder order = new VoucherOrder().setId(redisIdWorker.nextId("order:"))
+                    .setUserId(1_000_000L + i).setVoucherId(voucherId);
+            ids.add(order.getId());
+            voucherOrderService.createOrder(order);
+        }
+        long single = System.nanoTime() - begin;
+
+        begin = System.nanoTime();
+        for (int i = 0; i < n; i += batchSize) {
+            List<VoucherOrder> batch = new ArrayList<>(batchSize);
+            for (int j = i; j < i + batchSize; j++) {
+                VoucherOrder order = new VoucherOrder().setId(redisIdWorker.nextId("order:"))
+                        .setUserId(2_000_000L + j).setVoucherId(voucherId);
+                ids.add(order.getId());
+                batch.add(order);
+            }
+            voucherOrderService.createOrderBatch(batch);
+        }
+        long batch = System.nanoTime() - begin;
+        log.info("逐条落库: {} 单/s, 批量落库(batchSize={}): {} 单/s",
+                n * 1_000_000_000L / single, batchSize, n * 1_000_000_000L / batch);
+
+        voucherOrderService.removeByIds(ids);
+        seckillVoucherService.update().setSql("stock = " + voucher.getStock()).eq("voucher_id", voucherId).update();
+    }
+
+    /**
+     * 下单资格判断: 每个请求一次脚本调用 vs 合并请求批量调用, 对比吞吐和 p99
+     */
+    @Test
+    void testEligibilityBatchBenchmark() throws InterruptedException {
+        long voucherId = 999_999L;
+        int threads = 200, perThread = 100, n = threads * perThread;
+        ReflectionTestUtils.setField(eligibilityBatcher, "mode", "batch");
+        eligibilityBatcher.init();
+        try {
+            for (String mode : List.of("single", "batch")) {
+                stringRedisTemplate.delete(SECKILL_META_PREFIX + "{" + voucherId + "}");
+                seckillStockClient.activate(voucherId, n, 1, System.currentTimeMillis() - 1000,
+                        System.currentTimeMillis() + 3_600_000, 1, MEMBERSHIP_HASH, Map.of());
+                long[] latencies = new long[n];
+                CountDownLatch latch = new CountDownLatch(threads);
+                long begin = System.nanoTime();
+                for (int t = 0; t < threads; t++) {
+                    int base = t * perThread;
+                    es.submit(() -> {
+                        for (int i = base; i < base + perThread; i++) {
+                            long start = System.nanoTime();
+                            if ("single".equals(mode)) {
+                                seckillStockClient.acquire(voucherId, (long) i);
+                            } else {
+                                eligibilityBatcher.acquire(voucherId, (long) i, (long) i);
+                            }
+                            latencies[i] = System.nanoTime() - start;
+                        }
+                        latch.countDown();
+                    });
+                }
+                latch.await();
+                long elapsed = System.nanoTime() - begin;
+                Arrays.sort(latencies);
+                log.info("[{}] 吞吐 {} 次/s, p50 {} us, p99 {} us", mode, n * 1_000_000_000L / elapsed,
+                        latencies[n / 2] / 1000, latencies[n * 99 / 100] / 1000);
+            }
+        } finally {
+            eligibilityBatcher.destroy();
+            ReflectionTestUtils.setField(eligibilityBatcher, "mode", "single");
+            stringRedisTemplate.delete(List.of(SECKILL_STOCK_PREFIX + "{" + voucherId + "}",
+                    SECKILL_ORDER_PREFIX + "{" + voucherId + "}", SECKILL_META_PREFIX + "{" + voucherId + "}"));
+        }
+    }
+
+    /**
+     * 一人一单的下单记录: hash 与 bitmap 两种编码对比内存占用和下单资格判断的延迟
+     */
+    @Test
+    void testMembershipEncodingBenchmark() {
+        long voucherId = 999_998L;
+        int n = 100_000;
+        String orderKey = SECKILL_ORDER_PREFIX + "{" + voucherId + "}";
+        RedisScript<Long> memoryUsage = RedisScript.of(
+                "local s = 0 for _, k in ipairs(KEYS) do s = s + (redis.call('memory', 'usage', k) or 0) end return s",
+                Long.class);
+        try {
+            for (String membership : List.of(MEMBERSHIP_HASH, MEMBERSHIP_BITMAP)) {
+                stringRedisTemplate.delete(SECKILL_META_PREFIX + "{" + voucherId + "}");
+                seckillStockClient.activate(voucherId, n, 1, System.currentTimeMillis() - 1000,
+                        System.currentTimeMillis() + 3_600_000, 1, membership, Map.of());
+                long[] latencies = new long[n];
+                for (int i = 0; i < n; i++) {
+                    long start = System.nanoTime();
+                    seckillStockClient.acquire(voucherId, 1_000_000L + i);
+                    latencies[i] = System.nanoTime() - start;
+                }
+                List<String> keys = new ArrayList<>(List.of(orderKey, orderKey + ":b"));
+                Set<String> chunks = stringRedisTemplate.opsForSet().members(orderKey + ":b");
+                if (chunks != null) {
+                    chunks.forEach(chunk -> keys.add(orderKey + ":b:" + chunk));
+                }
+                Long bytes = stringRedisTemplate.execute(memoryUsage, keys);
+                Arrays.sort(latencies);
+                log.info("[{}] {} 个用户占用 {} 字节, p50 {} us, p99 {} us", membership, n, bytes,
+                        latencies[n / 2] / 1000, latencies[n * 99 / 100] / 1000);
+                // 每个用户都只能抢一次
+                assert seckillStockClient.acquire(voucherId, 1_000_000L) == 2;
+            }
+        } finally {
+            seckillStockClient.deactivate(voucherId);
+            stringRedisTemplate.delete(SECKILL_META_PREFIX + "{" + voucherId + "}");
+        }
+    }
+
 }